@@ -0,0 +1,330 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.osgi.framework.Version;
+
+/**
+ * The identity of a bundle, read from the manifest of a jar.
+ * <p>
+ * Only the end of the archive, the central directory up to the manifest
+ * entry and the manifest itself are read, with positional reads on a
+ * {@link FileChannel}: the other entries are neither read nor inflated, and
+ * no {@link JarFile} is opened, so inspecting a large jar costs about as
+ * much as inspecting a small one.  Zip64 archives, whose offsets do not fit
+ * the plain records, are read through {@link JarFile} instead.
+ */
+public final class BundleManifest
+{
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    // The end record is followed by a comment of at most 64k
+    private static final int MAX_COMMENT = 0xffff;
+    // Size of the central directory chunks read at once
+    private static final int CHUNK_SIZE = 8192;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    // A larger manifest is taken for a corrupted archive
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+    private static final byte[] MANIFEST_NAME = JarFile.MANIFEST_NAME.getBytes(Charset.forName("UTF-8"));
+
+    private final String symbolicName;
+    private final Version version;
+
+    private BundleManifest(String symbolicName, Version version)
+    {
+        this.symbolicName = symbolicName;
+        this.version = version;
+    }
+
+    /**
+     * @return the Bundle-SymbolicName, without its directives
+     */
+    public String getSymbolicName()
+    {
+        return symbolicName;
+    }
+
+    /**
+     * @return the Bundle-Version, <code>0.0.0</code> when not specified
+     */
+    public Version getVersion()
+    {
+        return version;
+    }
+
+    @Override
+    public String toString()
+    {
+        return symbolicName + "/" + version;
+    }
+
+    /**
+     * Read the identity of the bundle in a jar.
+     *
+     * @param file the jar
+     * @return the identity of the bundle, or <code>null</code> if the jar is not a valid bundle
+     * @throws IOException if the file can not be read, or is not a zip archive
+     */
+    public static BundleManifest read(File file) throws IOException
+    {
+        byte[] manifest;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            manifest = readManifest(channel);
+        }
+        catch (Zip64Exception e)
+        {
+            try (JarFile jar = new JarFile(file, false))
+            {
+                return parse(jar.getManifest());
+            }
+        }
+        return manifest != null ? parse(new Manifest(new ByteArrayInputStream(manifest))) : null;
+    }
+
+    private static BundleManifest parse(Manifest manifest)
+    {
+        if (manifest == null)
+        {
+            return null;
+        }
+        Attributes attributes = manifest.getMainAttributes();
+        String bsn = attributes.getValue("Bundle-SymbolicName");
+        if (bsn == null)
+        {
+            return null;
+        }
+        int semicolon = bsn.indexOf(';');
+        bsn = (semicolon >= 0 ? bsn.substring(0, semicolon) : bsn).trim();
+        if (bsn.length() == 0)
+        {
+            return null;
+        }
+        try
+        {
+            return new BundleManifest(bsn, Version.parseVersion(attributes.getValue("Bundle-Version")));
+        }
+        catch (IllegalArgumentException e)
+        {
+            // invalid version
+            return null;
+        }
+    }
+
+    /**
+     * Find the manifest entry in the central directory and read its content.
+     *
+     * @return the content of the manifest, or <code>null</code> if there is none
+     */
+    private static byte[] readManifest(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        if (size < EOCD_SIZE)
+        {
+            throw new IOException("Not a zip archive");
+        }
+        // Find the end of central directory record, the last 22 bytes unless the archive has a comment
+        ByteBuffer end = read(channel, size - EOCD_SIZE, EOCD_SIZE);
+        int eocd = 0;
+        if (end.getInt(0) != EOCD_SIGNATURE)
+        {
+            int tail = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT);
+            end = read(channel, size - tail, tail);
+            eocd = -1;
+            for (int i = tail - EOCD_SIZE; i >= 0; i--)
+            {
+                if (end.getInt(i) == EOCD_SIGNATURE)
+                {
+                    eocd = i;
+                    break;
+                }
+            }
+        }
+        if (eocd < 0)
+        {
+            throw new IOException("Not a zip archive");
+        }
+        int entries = end.getShort(eocd + 10) & 0xffff;
+        long cenSize = end.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cenOffset = end.getInt(eocd + 16) & ZIP64_MAGIC;
+        if (entries == 0xffff || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC)
+        {
+            throw new Zip64Exception();
+        }
+        // Walk the central directory, a chunk at a time, up to the manifest entry,
+        // which is usually one of the first ones
+        long cenEnd = cenOffset + cenSize;
+        long position = cenOffset;
+        ByteBuffer chunk = null;
+        long chunkStart = 0;
+        for (int i = 0; i < entries && position < cenEnd; i++)
+        {
+            if (position + CEN_SIZE > cenEnd)
+            {
+                throw new IOException("Corrupted central directory");
+            }
+            if (chunk == null || position + CEN_SIZE > chunkStart + chunk.limit())
+            {
+                chunkStart = position;
+                chunk = read(channel, position, (int) Math.min(Math.max(CHUNK_SIZE, CEN_SIZE), cenEnd - position));
+            }
+            int offset = (int) (position - chunkStart);
+            if (chunk.getInt(offset) != CEN_SIGNATURE)
+            {
+                throw new IOException("Corrupted central directory");
+            }
+            int nameLength = chunk.getShort(offset + 28) & 0xffff;
+            int extraLength = chunk.getShort(offset + 30) & 0xffff;
+            int commentLength = chunk.getShort(offset + 32) & 0xffff;
+            if (position + CEN_SIZE + nameLength > cenEnd)
+            {
+                throw new IOException("Corrupted central directory");
+            }
+            if (offset + CEN_SIZE + nameLength > chunk.limit())
+            {
+                // the name crosses the chunk, read again from the start of this entry
+                chunkStart = position;
+                chunk = read(channel, position, (int) Math.min(Math.max(CHUNK_SIZE, CEN_SIZE + nameLength), cenEnd - position));
+                offset = 0;
+            }
+            if (isManifest(chunk, offset + CEN_SIZE, nameLength))
+            {
+                int method = chunk.getShort(offset + 10) & 0xffff;
+                long compressedSize = chunk.getInt(offset + 20) & ZIP64_MAGIC;
+                long uncompressedSize = chunk.getInt(offset + 24) & ZIP64_MAGIC;
+                long local = chunk.getInt(offset + 42) & ZIP64_MAGIC;
+                if (compressedSize == ZIP64_MAGIC || uncompressedSize == ZIP64_MAGIC || local == ZIP64_MAGIC)
+                {
+                    throw new Zip64Exception();
+                }
+                if (compressedSize > MAX_MANIFEST_SIZE || uncompressedSize > MAX_MANIFEST_SIZE)
+                {
+                    throw new IOException("Manifest too large: " + Math.max(compressedSize, uncompressedSize) + " bytes");
+                }
+                return readEntry(channel, local, method, (int) compressedSize, (int) uncompressedSize);
+            }
+            position += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return null;
+    }
+
+    private static byte[] readEntry(FileChannel channel, long local, int method, int compressedSize, int uncompressedSize) throws IOException
+    {
+        if (local + LOC_SIZE > channel.size())
+        {
+            throw new IOException("Corrupted manifest entry");
+        }
+        ByteBuffer header = read(channel, local, LOC_SIZE);
+        if (header.getInt(0) != LOC_SIGNATURE)
+        {
+            throw new IOException("Corrupted local header");
+        }
+        // the name and extra field of the local header may differ from the central directory
+        long data = local + LOC_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        if (data + compressedSize > channel.size())
+        {
+            throw new IOException("Corrupted manifest entry");
+        }
+        ByteBuffer content = read(channel, data, compressedSize);
+        if (method == STORED)
+        {
+            return content.array();
+        }
+        if (method != DEFLATED)
+        {
+            throw new IOException("Unsupported compression method " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(content.array(), 0, compressedSize);
+            byte[] bytes = new byte[uncompressedSize];
+            int length = 0;
+            while (length < uncompressedSize && !inflater.finished())
+            {
+                int n = inflater.inflate(bytes, length, uncompressedSize - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new EOFException("Truncated manifest");
+                }
+                length += n;
+            }
+            return bytes;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Corrupted manifest", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Compare an entry name with the manifest name, ignoring the case as {@link JarFile} does.
+     */
+    private static boolean isManifest(ByteBuffer buffer, int offset, int length)
+    {
+        if (length != MANIFEST_NAME.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < length; i++)
+        {
+            byte b = buffer.get(offset + i);
+            if (b >= 'a' && b <= 'z')
+            {
+                b -= 'a' - 'A';
+            }
+            if (b != MANIFEST_NAME[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException("Truncated zip archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Thrown when the archive needs the zip64 records, which are not read here.
+     */
+    private static class Zip64Exception extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+}
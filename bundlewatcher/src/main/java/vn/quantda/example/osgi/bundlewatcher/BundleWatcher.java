@@ -17,6 +17,7 @@
 package vn.quantda.example.osgi.bundlewatcher;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Dictionary;
@@ -29,6 +30,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -56,6 +62,10 @@ public class BundleWatcher implements BundleActivator, ServiceTrackerCustomizer<
 	final Map<String, DirectoryWatcher> watchers = new HashMap<String, DirectoryWatcher>();
 	final ReadWriteLock lock = new ReentrantReadWriteLock();
 	volatile boolean stopped;
+	// Shared watch service and worker pool, created on first use
+	private WatchDispatcher dispatcher;
+	// Pool running the uploads of all the directory watchers, created on first use
+	private ScheduledExecutorService uploadExecutor;
 	
 	private ServiceTracker<CaveRepositoryService, CaveRepositoryService> caveRepoServiceTracker;
 	
@@ -95,6 +105,28 @@ public class BundleWatcher implements BundleActivator, ServiceTrackerCustomizer<
             set(ht, DirectoryWatcher.CONFIG_ENCODING);
             set(ht, DirectoryWatcher.DISABLE_NIO2);
             set(ht, DirectoryWatcher.SUBDIR_MODE);
+            set(ht, DirectoryWatcher.BLOCKING);
+            set(ht, DirectoryWatcher.SHARED_DISPATCHER);
+            set(ht, DirectoryWatcher.SCAN_PARALLELISM);
+            set(ht, DirectoryWatcher.EVENT_SOURCE);
+            set(ht, DirectoryWatcher.MAX_WATCHES);
+            set(ht, DirectoryWatcher.CONTENT_DIGEST);
+            set(ht, DirectoryWatcher.STABILITY_QUIET);
+            set(ht, DirectoryWatcher.STABILITY_MAX_QUIET);
+            set(ht, DirectoryWatcher.STATE_DIR);
+            set(ht, DirectoryWatcher.SCANNER);
+            set(ht, DirectoryWatcher.POLL_VERIFY_INTERVAL);
+            set(ht, DirectoryWatcher.SCAN_SLICE_TIME);
+            set(ht, DirectoryWatcher.SCAN_SLICE_ENTRIES);
+            set(ht, DirectoryWatcher.UPLOAD_THREADS);
+            set(ht, DirectoryWatcher.UPLOAD_QUEUE);
+            set(ht, DirectoryWatcher.UPLOAD_RETRIES);
+            set(ht, DirectoryWatcher.UPLOAD_BACKOFF);
+            set(ht, DirectoryWatcher.UPLOAD_BATCH);
+            set(ht, DirectoryWatcher.UPLOAD_BATCH_WINDOW);
+            set(ht, DirectoryWatcher.UPLOAD_BATCH_SIZE);
+            set(ht, DirectoryWatcher.REPOSITORY);
+            set(ht, DirectoryWatcher.ROUTES);
 
             // check if dir is an array of dirs
             String dirs = ht.get(DirectoryWatcher.DIR);
@@ -152,6 +184,35 @@ public class BundleWatcher implements BundleActivator, ServiceTrackerCustomizer<
                     // Ignore
                 }
             }
+            synchronized (this)
+            {
+                if (dispatcher != null)
+                {
+                    try
+                    {
+                        dispatcher.close();
+                    }
+                    catch (IOException e)
+                    {
+                        // Ignore
+                    }
+                    dispatcher = null;
+                }
+                if (uploadExecutor != null)
+                {
+                    // the pipelines have been closed with their watchers
+                    uploadExecutor.shutdownNow();
+                    try
+                    {
+                        uploadExecutor.awaitTermination(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    uploadExecutor = null;
+                }
+            }
             if (cmSupport != null)
             {
                 cmSupport.run();
@@ -231,6 +292,56 @@ public class BundleWatcher implements BundleActivator, ServiceTrackerCustomizer<
 		
 	}
 	
+	/**
+	 * Retrieve the dispatcher shared by the directory watchers, creating it
+	 * if needed.  Its pool size is read from the framework property
+	 * {@link DirectoryWatcher#DISPATCHER_THREADS}.
+	 */
+	synchronized WatchDispatcher getDispatcher() throws IOException {
+		if (dispatcher == null) {
+			int threads = 2;
+			String value = context.getProperty(DirectoryWatcher.DISPATCHER_THREADS);
+			if (value != null) {
+				try {
+					threads = Integer.parseInt(value.trim());
+				} catch (NumberFormatException e) {
+					LOG.warn(DirectoryWatcher.DISPATCHER_THREADS + " set, but not an integer: " + value);
+				}
+			}
+			dispatcher = new WatchDispatcher(threads);
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Retrieve the pool running the uploads of all the directory watchers,
+	 * creating it if needed.  Its size is read from the framework property
+	 * {@link DirectoryWatcher#UPLOAD_POOL_THREADS}; the number of uploads of
+	 * each route is limited by the route itself.
+	 */
+	synchronized ScheduledExecutorService getUploadExecutor() {
+		if (uploadExecutor == null) {
+			int threads = 4;
+			String value = context.getProperty(DirectoryWatcher.UPLOAD_POOL_THREADS);
+			if (value != null) {
+				try {
+					threads = Integer.parseInt(value.trim());
+				} catch (NumberFormatException e) {
+					LOG.warn(DirectoryWatcher.UPLOAD_POOL_THREADS + " set, but not an integer: " + value);
+				}
+			}
+			final AtomicInteger count = new AtomicInteger();
+			uploadExecutor = Executors.newScheduledThreadPool(Math.max(1, threads), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bundlewatcher-upload-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return uploadExecutor;
+	}
+
 	private CaveRepositoryService checkCaveRepoService() {
 		CaveRepositoryService caveRepoService = this.caveRepoServiceTracker.getService();
 		LOG.info("Can get CaveRepositoryService:" + (caveRepoService != null));
@@ -246,14 +357,15 @@ public class BundleWatcher implements BundleActivator, ServiceTrackerCustomizer<
 
 	@Override
 	public void modifiedService(ServiceReference<CaveRepositoryService> serviceReference, CaveRepositoryService service) {
-		// TODO Auto-generated method stub
-		
+		// the repositories may have changed, look them up again
+		setCaveRepoService(service);
 	}
 
 	@Override
 	public void removedService(ServiceReference<CaveRepositoryService> serviceReference, CaveRepositoryService service) {
-		// TODO Auto-generated method stub
-		
+		this.context.ungetService(serviceReference);
+		// switch to another Cave repository service, if any
+		setCaveRepoService(this.caveRepoServiceTracker.getService());
 	}
 	
 	private void setCaveRepoService(CaveRepositoryService caveRepoService) {
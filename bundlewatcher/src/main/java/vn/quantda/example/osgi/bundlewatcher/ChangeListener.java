@@ -0,0 +1,28 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+
+/**
+ * Receives the changes found by a {@link Scanner}, one at a time, as soon as
+ * they are found, so that they can be handled before the scan is over.
+ */
+public interface ChangeListener
+{
+
+    enum Kind
+    {
+        CREATED,
+        MODIFIED,
+        DELETED
+    }
+
+    /**
+     * Called for each change, on the scanning thread.
+     *
+     * @param file the file or directory
+     * @param kind the kind of change
+     * @param checksum the new checksum of the file, or the last reported one for a deleted file
+     */
+    void changed(File file, Kind kind, long checksum);
+
+}
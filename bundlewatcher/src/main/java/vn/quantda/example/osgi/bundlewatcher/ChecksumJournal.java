@@ -0,0 +1,315 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable store of the checksums of the files a {@link Scanner} reported
+ * and that have been handled, uploaded for instance, so that files that did
+ * not change while the framework was stopped are not reported again after
+ * a restart.
+ * <p>
+ * The store is an append-only journal, memory mapped so that recording a
+ * checksum does not need any system call.  Each record holds a path and a
+ * checksum, a zero checksum recording the removal of the path, and is
+ * protected by a CRC: when loading, the journal is read up to the first
+ * incomplete or corrupted record, so a crash while appending only loses
+ * that record.  When the journal holds too many obsolete records, it is
+ * compacted in place; a crash during the compaction discards the journal,
+ * and all the files are then reported again.
+ */
+public class ChecksumJournal implements Closeable
+{
+
+    private static final int MAGIC = 0x434b534a;
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final int COMPACT_THRESHOLD = 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Logger LOG = LoggerFactory.getLogger(ChecksumJournal.class);
+
+    private final Path file;
+    private final String key;
+    // The current content of the journal
+    private final Map<String, Long> entries = new HashMap<String, Long>();
+    private int records;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private boolean dirty;
+
+    /**
+     * Create a journal.
+     *
+     * @param file the journal file
+     * @param key identifies the content of the journal, usually the watched directory,
+     *            a journal written for another key is discarded
+     */
+    public ChecksumJournal(Path file, String key)
+    {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * Open the journal and read the checksums it contains.
+     *
+     * @return the checksums of the files
+     * @throws IOException if the journal can not be opened
+     */
+    public synchronized Map<File, Long> load() throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        open();
+        boolean valid = readHeader();
+        if (valid)
+        {
+            readRecords();
+        }
+        if (!valid || records > COMPACT_THRESHOLD && records > 2 * entries.size())
+        {
+            compact();
+        }
+        Map<File, Long> checksums = new HashMap<File, Long>();
+        for (Map.Entry<String, Long> entry : entries.entrySet())
+        {
+            checksums.put(new File(entry.getKey()), entry.getValue());
+        }
+        return checksums;
+    }
+
+    /**
+     * Record the checksum of a file.
+     */
+    public synchronized void put(File file, long checksum)
+    {
+        String path = file.getPath();
+        Long old = entries.get(path);
+        if (checksum == 0 || old != null && old == checksum)
+        {
+            return;
+        }
+        entries.put(path, checksum);
+        append(path, checksum);
+    }
+
+    /**
+     * Record the removal of a file.
+     */
+    public synchronized void remove(File file)
+    {
+        String path = file.getPath();
+        if (entries.remove(path) != null)
+        {
+            append(path, 0);
+        }
+    }
+
+    /**
+     * Write the recorded changes to the storage device.
+     */
+    public synchronized void sync()
+    {
+        if (dirty && buffer != null)
+        {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        sync();
+        buffer = null;
+        if (channel != null)
+        {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+    }
+
+    private boolean readHeader()
+    {
+        try
+        {
+            if (buffer.getInt() != MAGIC)
+            {
+                return false;
+            }
+            String k = readString();
+            return key.equals(k);
+        }
+        catch (RuntimeException e)
+        {
+            return false;
+        }
+    }
+
+    private void readRecords()
+    {
+        while (true)
+        {
+            int start = buffer.position();
+            try
+            {
+                String path = readString();
+                long checksum = buffer.getLong();
+                int crc = buffer.getInt();
+                if (path == null || crc != crc(path, checksum))
+                {
+                    buffer.position(start);
+                    break;
+                }
+                if (checksum != 0)
+                {
+                    entries.put(path, checksum);
+                }
+                else
+                {
+                    entries.remove(path);
+                }
+                records++;
+            }
+            catch (RuntimeException e)
+            {
+                // incomplete record at the end of the journal
+                buffer.position(start);
+                break;
+            }
+        }
+        // Clear what follows the last valid record, so that it is never read again
+        for (int i = buffer.position(); i < buffer.capacity() && buffer.get(i) != 0; i++)
+        {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private String readString()
+    {
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining())
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private void append(String path, long checksum)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+        try
+        {
+            byte[] bytes = path.getBytes(UTF8);
+            ensureCapacity(bytes.length + 16);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            buffer.putLong(checksum);
+            buffer.putInt(crc(path, checksum));
+            records++;
+            dirty = true;
+            if (records > COMPACT_THRESHOLD && records > 2 * entries.size())
+            {
+                compact();
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Unable to write checksum journal " + file + ", checksums will not be kept", e);
+            try
+            {
+                close();
+            }
+            catch (IOException e2)
+            {
+                // Ignore
+            }
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException
+    {
+        if (buffer.remaining() < length)
+        {
+            int position = buffer.position();
+            long size = Math.max((long) buffer.capacity() * 2, position + length);
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Rewrite the current entries in place, then clear the rest of the journal.
+     * The journal is rewritten through its mapping rather than replaced by a
+     * new file, which some platforms do not allow while the file is mapped.
+     */
+    private void compact() throws IOException
+    {
+        // Invalidate the journal while it is rewritten, so that a crash discards it
+        // instead of leaving old records after the new ones
+        buffer.putInt(0, 0);
+        buffer.force();
+        buffer.position(4);
+        byte[] k = key.getBytes(UTF8);
+        ensureCapacity(k.length + 4);
+        buffer.putInt(k.length);
+        buffer.put(k);
+        for (Map.Entry<String, Long> entry : entries.entrySet())
+        {
+            byte[] bytes = entry.getKey().getBytes(UTF8);
+            ensureCapacity(bytes.length + 16);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            buffer.putLong(entry.getValue());
+            buffer.putInt(crc(entry.getKey(), entry.getValue()));
+        }
+        int position = buffer.position();
+        byte[] zeros = new byte[Math.min(8192, buffer.remaining())];
+        while (buffer.hasRemaining())
+        {
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+        buffer.force();
+        buffer.putInt(0, MAGIC);
+        buffer.force();
+        buffer.position(position);
+        records = entries.size();
+        dirty = false;
+    }
+
+    private static int crc(String path, long checksum)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(path.getBytes(UTF8));
+        for (int i = 0; i < 8; i++)
+        {
+            crc.update((int) (checksum & 0xff));
+            checksum >>= 8;
+        }
+        return (int) crc.getValue();
+    }
+
+}
@@ -0,0 +1,62 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Compute a digest of the content of a file, used to make sure a file whose
+ * attributes look stable is not still being written, and to recognize a file
+ * whose content has not changed.
+ * <p>
+ * The file is memory mapped by regions, so the bytes are hashed directly
+ * from the page cache without being copied to the heap.
+ */
+public final class ContentDigest
+{
+
+    // Size of the regions mapped at once, to bound the address space used for huge files
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+    private ContentDigest()
+    {
+    }
+
+    /**
+     * Compute the digest of a regular file.
+     *
+     * @param file the file
+     * @return the digest of the whole content of the file
+     * @throws IOException if the file can not be read
+     */
+    public static long digest(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            for (long position = 0; position < size; position += REGION_SIZE)
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(REGION_SIZE, size - position));
+                crc.update(buffer);
+            }
+            // the length is part of the digest, so that a truncated file is never equal
+            update(crc, size);
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, long l)
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            crc.update((int) (l & 0x000000ff));
+            l >>= 8;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checksums of the first level sub directories of a watched directory,
+ * kept up to date from the files reported by a {@link Watcher}.
+ * <p>
+ * The checksums form a Merkle tree: the hash of a file is computed from its
+ * name and attributes, and the hash of a directory from its name and the sum
+ * of the hashes of its children.  As a sum does not depend on the order of
+ * the children, a change of a single file only updates the hashes of its
+ * ancestors, in a time proportional to its depth instead of the number of
+ * files in the sub directory.
+ * <p>
+ * Only the files reported by the watcher are part of the checksums, i.e. the
+ * files accepted by its filter.
+ */
+class DirectoryChecksums {
+
+    private final Path root;
+    private final Map<String, Node> tops = new HashMap<String, Node>();
+
+    public DirectoryChecksums(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Add or update a file located inside a sub directory.
+     *
+     * @param file the file
+     * @param attrs the attributes of the file
+     */
+    public synchronized void update(Path file, BasicFileAttributes attrs) {
+        Path relative = relativize(file);
+        if (relative == null || relative.getNameCount() < 2) {
+            return;
+        }
+        Node parent = tops.get(relative.getName(0).toString());
+        if (parent == null) {
+            parent = new Node(relative.getName(0).toString(), null, true);
+            tops.put(parent.name, parent);
+        }
+        for (int i = 1; i < relative.getNameCount() - 1; i++) {
+            String name = relative.getName(i).toString();
+            Node child = parent.children.get(name);
+            if (child != null && child.children == null) {
+                // a file has been replaced by a directory
+                parent.children.remove(name);
+                adjust(parent, -child.hash, -1);
+                child = null;
+            }
+            if (child == null) {
+                child = new Node(name, parent, true);
+                parent.children.put(name, child);
+                adjust(parent, child.hash, 1);
+            }
+            parent = child;
+        }
+        String name = relative.getFileName().toString();
+        long hash = fileHash(name, attrs);
+        Node leaf = parent.children.get(name);
+        if (leaf != null && leaf.children != null) {
+            // a directory has been replaced by a file
+            parent.children.remove(name);
+            adjust(parent, -leaf.hash, -1);
+            leaf = null;
+        }
+        if (leaf == null) {
+            leaf = new Node(name, parent, false);
+            leaf.hash = hash;
+            parent.children.put(name, leaf);
+            adjust(parent, hash, 1);
+        } else if (leaf.hash != hash) {
+            long delta = hash - leaf.hash;
+            leaf.hash = hash;
+            adjust(parent, delta, 0);
+        }
+    }
+
+    /**
+     * Remove a file or a directory and everything below it.
+     *
+     * @param path the removed path
+     */
+    public synchronized void remove(Path path) {
+        Node node = find(path);
+        if (node == null) {
+            return;
+        }
+        if (node.parent == null) {
+            tops.remove(node.name);
+        } else {
+            node.parent.children.remove(node.name);
+            adjust(node.parent, -node.hash, -1);
+        }
+    }
+
+    /**
+     * Retrieve the checksum of a first level sub directory.
+     *
+     * @param dir the sub directory
+     * @return the checksum, or <code>null</code> if no file is known in this directory
+     */
+    public synchronized Long checksum(Path dir) {
+        if (!root.equals(dir.getParent())) {
+            return null;
+        }
+        Node node = tops.get(dir.getFileName().toString());
+        return node != null && node.count > 0 ? node.hash : null;
+    }
+
+    /**
+     * Update the hashes of a directory and its ancestors after the sum of its
+     * children changed by the given delta.
+     */
+    private void adjust(Node node, long delta, int count) {
+        node.count += count;
+        while (node != null) {
+            long old = node.hash;
+            node.sum += delta;
+            node.hash = node.directoryHash();
+            delta = node.hash - old;
+            node = node.parent;
+        }
+    }
+
+    private Node find(Path path) {
+        Path relative = relativize(path);
+        if (relative == null || relative.getNameCount() == 0 || relative.toString().isEmpty()) {
+            return null;
+        }
+        Node node = tops.get(relative.getName(0).toString());
+        for (int i = 1; node != null && i < relative.getNameCount(); i++) {
+            node = node.children != null ? node.children.get(relative.getName(i).toString()) : null;
+        }
+        return node;
+    }
+
+    private Path relativize(Path path) {
+        return path.startsWith(root) ? root.relativize(path) : null;
+    }
+
+    private static long fileHash(String name, BasicFileAttributes attrs) {
+        long hash = mix(name.hashCode());
+        hash = mix(hash + attrs.lastModifiedTime().toMillis());
+        hash = mix(hash + attrs.size());
+        if (attrs.fileKey() != null) {
+            hash = mix(hash + attrs.fileKey().hashCode());
+        }
+        return hash;
+    }
+
+    /**
+     * Scramble the bits of a value, so that sums of hashes do not collide easily
+     * (finalizer of the SplitMix64 generator).
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static class Node {
+        final String name;
+        final Node parent;
+        // Children of a directory, null for a file
+        Map<String, Node> children;
+        int count;
+        long sum;
+        long hash;
+
+        Node(String name, Node parent, boolean directory) {
+            this.name = name;
+            this.parent = parent;
+            if (directory) {
+                this.children = new HashMap<String, Node>();
+                this.hash = directoryHash();
+            }
+        }
+
+        long directoryHash() {
+            return mix(mix(name.hashCode() + count) + sum);
+        }
+    }
+
+}
@@ -2,9 +2,17 @@ package vn.quantda.example.osgi.bundlewatcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import org.apache.karaf.cave.server.api.CaveRepository;
 import org.apache.karaf.cave.server.api.CaveRepositoryService;
@@ -28,6 +36,39 @@ public class DirectoryWatcher extends Thread {
     public final static String CONFIG_ENCODING = "quantda.bundlewatcher.configEncoding";
     public final static String DISABLE_NIO2 = "quantda.bundlewatcher.disableNio2";
     public final static String SUBDIR_MODE = "quantda.bundlewatcher.subdir.mode";
+    public final static String BLOCKING = "quantda.bundlewatcher.blocking";
+    public final static String SHARED_DISPATCHER = "quantda.bundlewatcher.sharedDispatcher";
+    public final static String DISPATCHER_THREADS = "quantda.bundlewatcher.dispatcher.threads";
+    public final static String SCAN_PARALLELISM = "quantda.bundlewatcher.scan.parallelism";
+    public final static String EVENT_SOURCE = "quantda.bundlewatcher.eventSource";
+    public final static String MAX_WATCHES = "quantda.bundlewatcher.maxWatches";
+    public final static String CONTENT_DIGEST = "quantda.bundlewatcher.contentDigest";
+    public final static String STABILITY_QUIET = "quantda.bundlewatcher.stability.quiet";
+    public final static String STABILITY_MAX_QUIET = "quantda.bundlewatcher.stability.maxQuiet";
+    public final static String STATE_DIR = "quantda.bundlewatcher.stateDir";
+    public final static String SCANNER = "quantda.bundlewatcher.scanner";
+    public final static String POLL_VERIFY_INTERVAL = "quantda.bundlewatcher.poll.verifyInterval";
+    public final static String SCAN_SLICE_TIME = "quantda.bundlewatcher.scan.sliceTime";
+    public final static String SCAN_SLICE_ENTRIES = "quantda.bundlewatcher.scan.sliceEntries";
+    public final static String UPLOAD_THREADS = "quantda.bundlewatcher.upload.threads";
+    public final static String UPLOAD_POOL_THREADS = "quantda.bundlewatcher.upload.poolThreads";
+    public final static String UPLOAD_QUEUE = "quantda.bundlewatcher.upload.queue";
+    public final static String UPLOAD_RETRIES = "quantda.bundlewatcher.upload.retries";
+    public final static String UPLOAD_BACKOFF = "quantda.bundlewatcher.upload.backoff";
+    public final static String UPLOAD_BATCH = "quantda.bundlewatcher.upload.batch";
+    public final static String UPLOAD_BATCH_WINDOW = "quantda.bundlewatcher.upload.batchWindow";
+    public final static String UPLOAD_BATCH_SIZE = "quantda.bundlewatcher.upload.batchSize";
+    public final static String REPOSITORY = "quantda.bundlewatcher.repository";
+    public final static String ROUTES = "quantda.bundlewatcher.routes";
+    public final static String ROUTE_PREFIX = "quantda.bundlewatcher.route.";
+    public final static String ROUTE_REPOSITORY = ".repository";
+    public final static String ROUTE_FILTER = ".filter";
+    public final static String ROUTE_SYMBOLIC_NAME = ".symbolicName";
+    public final static String ROUTE_THREADS = ".threads";
+
+    public final static String SCANNER_WATCH = "watch";
+    public final static String SCANNER_POLL = "poll";
+    public final static String SCANNER_STREAM = "stream";
 
     public final static String SCOPE_NONE = "none";
     public final static String SCOPE_MANAGED = "managed";
@@ -46,15 +87,42 @@ public class DirectoryWatcher extends Thread {
     
     File watchedDirectory;
     File tmpDir;
+    File stagingDir;
     long poll;
     String filter;
     boolean disableNio2;
+    boolean blocking;
+    boolean sharedDispatcher;
+    boolean contentDigest;
     
     // The scanner to report files changes
     Scanner scanner;
-    
-    // Cave Repository Service
-    private CaveRepositoryService caveRepoService;
+
+    // The shared dispatcher and our processing task, if any
+    WatchDispatcher dispatcher;
+    volatile WatchDispatcher.Registration registration;
+
+    // Checksums of the reported files, kept across restarts
+    ChecksumJournal journal;
+
+    // Digest of the content of the files last uploaded, when content digests are enabled
+    Map<File, Long> uploadedDigests = new ConcurrentHashMap<File, Long>();
+
+    // Checksums the jars waiting for upload were reported with, journaled once they are uploaded
+    final Map<File, Long> reportedChecksums = new ConcurrentHashMap<File, Long>();
+
+    // The file each bundle was uploaded from, by repository, symbolic name and version
+    Map<String, File> uploadedBundles = new ConcurrentHashMap<String, File>();
+
+    // Routes of the reported jars to Cave repositories, each uploading on the shared upload pool,
+    // the last one being the default route
+    List<UploadRoute> routes;
+    // Whether a route needs the symbolic name of the jars
+    boolean routeBySymbolicName;
+
+    // Number of batches added to Cave, and the time spent generating their metadata in milliseconds
+    final AtomicLong metadataBatches = new AtomicLong();
+    final AtomicLong metadataTime = new AtomicLong();
 	
 	public DirectoryWatcher(BundleWatcher bundleWatcher, Map<String, String> properties, BundleContext context)
     {
@@ -71,21 +139,235 @@ public class DirectoryWatcher extends Thread {
 		verifyWatchedDir();
         tmpDir = getFile(properties, TMPDIR, null);
         prepareTempDir();
+        // Snapshots of the jars being uploaded, left over by a crash if any
+        stagingDir = new File(tmpDir, "staging-" + getDirectoryKey());
+        StagedFile.purge(stagingDir);
         
         filter = properties.get(FILTER);
         disableNio2 = getBoolean(properties, DISABLE_NIO2, false);
+        blocking = getBoolean(properties, BLOCKING, false);
+        sharedDispatcher = getBoolean(properties, SHARED_DISPATCHER, false);
+        contentDigest = getBoolean(properties, CONTENT_DIGEST, false);
+        if (sharedDispatcher) {
+            try {
+                dispatcher = bundleWatcher.getDispatcher();
+            } catch (IOException e) {
+                LOG.warn("Unable to create the shared dispatcher, using a dedicated thread for " + watchedDirectory, e);
+                sharedDispatcher = false;
+            }
+        }
         
-        if (disableNio2) {
-            scanner = new Scanner(watchedDirectory, filter, properties.get(SUBDIR_MODE));
+        String scannerName = properties.get(SCANNER);
+        if (scannerName == null) {
+            scannerName = disableNio2 ? SCANNER_POLL : SCANNER_WATCH;
+        }
+        if (!SCANNER_WATCH.equals(scannerName)) {
+            scanner = createPollingScanner(scannerName);
         } else {
+            WatcherScanner watcherScanner = null;
             try {
-                scanner = new WatcherScanner(context, watchedDirectory, filter, properties.get(SUBDIR_MODE));
+                watcherScanner = new WatcherScanner(context, watchedDirectory, filter, properties.get(SUBDIR_MODE), dispatcher);
+                watcherScanner.setEventSource(createEventSource(properties.get(EVENT_SOURCE)));
+                watcherScanner.setMaxWatches((int) getLong(properties, MAX_WATCHES, 0));
+                // The tree is only walked in parallel when asked for
+                watcherScanner.setParallelism((int) getLong(properties, SCAN_PARALLELISM, 1));
+                watcherScanner.start();
+                scanner = watcherScanner;
             } catch (Throwable t) {
-                scanner = new Scanner(watchedDirectory, filter, properties.get(SUBDIR_MODE));
+                LOG.warn("Unable to watch " + watchedDirectory + ", falling back to polling the whole tree", t);
+                if (watcherScanner != null) {
+                    try {
+                        watcherScanner.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+                scanner = createPollingScanner(SCANNER_POLL);
+            }
+        }
+        scanner.setContentDigest(contentDigest);
+        scanner.setStability(getLong(properties, STABILITY_QUIET, StabilityTracker.DEFAULT_QUIET),
+                getLong(properties, STABILITY_MAX_QUIET, StabilityTracker.DEFAULT_MAX_QUIET));
+        routes = createRoutes();
+    }
+
+    /**
+     * Create the routes listed in {@link #ROUTES}, followed by the default
+     * route to {@link #REPOSITORY}.  The rules of a route, its repository and
+     * its number of concurrent uploads are read from the properties starting
+     * with {@link #ROUTE_PREFIX} and its name.
+     *
+     * @return the routes, in the order they are tried
+     */
+    List<UploadRoute> createRoutes()
+    {
+        List<UploadRoute> routes = new ArrayList<UploadRoute>();
+        String names = properties.get(ROUTES);
+        if (names != null)
+        {
+            for (String name : names.split(","))
+            {
+                name = name.trim();
+                if (name.length() == 0)
+                {
+                    continue;
+                }
+                String prefix = ROUTE_PREFIX + name;
+                UploadRoute route = new UploadRoute(name, properties.get(prefix + ROUTE_REPOSITORY),
+                        properties.get(prefix + ROUTE_FILTER), properties.get(prefix + ROUTE_SYMBOLIC_NAME));
+                route.pipeline = createPipeline(route, getLong(properties, prefix + ROUTE_THREADS,
+                        getLong(properties, UPLOAD_THREADS, 2)));
+                routeBySymbolicName |= route.needsSymbolicName();
+                routes.add(route);
+            }
+        }
+        UploadRoute route = new UploadRoute("default", properties.get(REPOSITORY), null, null);
+        route.pipeline = createPipeline(route, getLong(properties, UPLOAD_THREADS, 2));
+        routes.add(route);
+        return routes;
+    }
+
+    private UploadPipeline createPipeline(final UploadRoute route, long threads)
+    {
+        UploadPipeline pipeline = new UploadPipeline(getThreadName(properties) + "-" + route.getName(), new UploadPipeline.BatchUploader()
+                {
+                    public void upload(File file) throws Exception
+                    {
+                        doUpload(route, file);
+                    }
+
+                    public void upload(List<File> files) throws Exception
+                    {
+                        doUpload(route, files);
+                    }
+                },
+                bundleWatcher.getUploadExecutor(),
+                (int) threads,
+                // When that many jars wait for a route, the scanner waits too
+                (int) getLong(properties, UPLOAD_QUEUE, 256),
+                (int) getLong(properties, UPLOAD_RETRIES, 3),
+                getLong(properties, UPLOAD_BACKOFF, 1000));
+        if (getBoolean(properties, UPLOAD_BATCH, false))
+        {
+            // The jars found in a scan, or within the window, are added to Cave together
+            pipeline.setBatching(getLong(properties, UPLOAD_BATCH_WINDOW, 0), (int) getLong(properties, UPLOAD_BATCH_SIZE, 0));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Select the route of a jar: the first route whose rules match.
+     */
+    UploadRoute route(File file)
+    {
+        String bsn = routeBySymbolicName ? UploadRoute.getSymbolicName(file) : null;
+        for (UploadRoute route : routes)
+        {
+            if (route.matches(file, bsn))
+            {
+                return route;
+            }
+        }
+        return routes.get(routes.size() - 1);
+    }
+
+    /**
+     * Check whether a route has as many jars waiting to be uploaded as allowed.
+     */
+    private boolean isUploadQueueFull()
+    {
+        for (UploadRoute route : routes)
+        {
+            if (route.pipeline.isFull())
+            {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Close the batches of all the routes at the end of a scan.
+     */
+    private void flush()
+    {
+        for (UploadRoute route : routes)
+        {
+            route.pipeline.flush();
+        }
     }
 	
+    /**
+     * Create a scanner polling the whole tree.  The scanner reading each
+     * directory in a single pass is only used when requested, the plain
+     * scanner is used otherwise.
+     *
+     * @param name the name of the scanner
+     * @return the scanner to use
+     */
+    Scanner createPollingScanner(String name)
+    {
+        Scanner polling;
+        if (SCANNER_STREAM.equals(name))
+        {
+            polling = new StreamScanner(watchedDirectory, filter, properties.get(SUBDIR_MODE));
+        }
+        else
+        {
+            if (!SCANNER_POLL.equals(name))
+            {
+                LOG.warn("Unknown " + SCANNER + ": " + name + ", polling the whole tree");
+            }
+            polling = new Scanner(watchedDirectory, filter, properties.get(SUBDIR_MODE));
+        }
+        // Sub directories may be listed in parallel in recurse mode, on the calling thread by default
+        polling.setParallelism((int) getLong(properties, SCAN_PARALLELISM, 1));
+        // Unchanged directories are not listed between full verifications
+        polling.setVerifyInterval(getLong(properties, POLL_VERIFY_INTERVAL, 0));
+        // A large tree may be scanned in slices, so that a single scan does not hold the watcher for long
+        polling.setSliceBudget(getLong(properties, SCAN_SLICE_TIME, 0), (int) getLong(properties, SCAN_SLICE_ENTRIES, 0));
+        return polling;
+    }
+
+    /**
+     * Select the source of file system events.  The JDK watch service is
+     * used by default, and as a fallback when the requested source is not
+     * available on this platform.
+     *
+     * @param name the name of the event source
+     * @return the event source to use
+     */
+    EventSource createEventSource(String name)
+    {
+        if (EventSource.INOTIFY.equals(name))
+        {
+            if (sharedDispatcher)
+            {
+                LOG.warn(EVENT_SOURCE + " = " + name + " is not supported with the shared dispatcher, using the JDK watch service");
+            }
+            else
+            {
+                try
+                {
+                    if (InotifyEventSource.isAvailable())
+                    {
+                        return new InotifyEventSource();
+                    }
+                }
+                catch (Throwable t)
+                {
+                    // JNA is not available
+                }
+                LOG.warn(EVENT_SOURCE + " = " + name + " is not available on this platform, using the JDK watch service");
+            }
+        }
+        else if (name != null && !EventSource.JDK.equals(name))
+        {
+            LOG.warn("Unknown " + EVENT_SOURCE + ": " + name + ", using the JDK watch service");
+        }
+        return new JdkEventSource();
+    }
+
 	public static String getThreadName(Map<String, String> properties)
     {
         return (properties.get(DIR) != null ? properties.get(DIR) : "./load");
@@ -134,8 +416,14 @@ public class DirectoryWatcher extends Thread {
         return dflt;
     }
     
+    /**
+     * Set the Cave repository service, the repositories of the routes are
+     * looked up again on their next use.
+     */
     public void setCaveRepoService(CaveRepositoryService service) {
-    	this.caveRepoService = service;
+        for (UploadRoute route : routes) {
+        	route.setCaveRepoService(service);
+        }
     }
 
 	private void prepareTempDir() {
@@ -245,7 +533,11 @@ public class DirectoryWatcher extends Thread {
                     "{" + POLL + " (ms) = " + poll + ", "
                             + DIR + " = " + watchedDirectory.getAbsolutePath() + ", "
                             + TMPDIR + " = " + tmpDir + ", "
-                            + FILTER + " = " + filter + "}"
+                            + FILTER + " = " + filter + ", "
+                            + BLOCKING + " = " + blocking + ", "
+                            + SHARED_DISPATCHER + " = " + sharedDispatcher + ", "
+                            + EVENT_SOURCE + " = " + properties.get(EVENT_SOURCE) + ", "
+                            + CONTENT_DIGEST + " = " + contentDigest + "}"
             );
 
             try {
@@ -266,16 +558,23 @@ public class DirectoryWatcher extends Thread {
             try {
                 // Don't access the disk when the framework is still in a startup phase.
                 if (systemBundle.getState() == Bundle.ACTIVE) {
-                    Set<File> files = scanner.scan(false);
-                    // Check that there is a result.  If not, this means that the directory can not be listed,
-                    // so it's presumably not a valid directory (it may have been deleted by someone).
+                    // Changes are handled as soon as they are found.  If the directory can not be listed,
+                    // it's presumably not a valid directory (it may have been deleted by someone).
                     // In such case, just sleep
-                    if (files != null) {
-                        process(files);
-                    }
+                    scanner.scan(false, uploader);
+                    flush();
                 }
-                synchronized (this) {
-                    wait(poll);
+                if (blocking) {
+                    // wake up as soon as the scanner has something to report
+                    scanner.await(poll);
+                } else {
+                    // a pending file may be stable before the end of the poll interval
+                    long delay = scanner.nextScanDelay(poll);
+                    if (delay != 0) {
+                        synchronized (this) {
+                            wait(delay < 0 ? poll : delay);
+                        }
+                    }
                 }
             } catch (InterruptedException e) {
                 interrupt();
@@ -293,6 +592,10 @@ public class DirectoryWatcher extends Thread {
 	}
 	
 	public void close() {
+        if (registration != null)
+        {
+            registration.cancel();
+        }
 		interrupt();
         try
         {
@@ -310,61 +613,376 @@ public class DirectoryWatcher extends Thread {
         {
             // Ignore
         }
+        // nothing is submitted anymore, wait for the uploads in progress
+        for (UploadRoute route : routes)
+        {
+            route.pipeline.close();
+        }
+        StagedFile.purge(stagingDir);
+        stagingDir.delete();
+        if (journal != null)
+        {
+            try
+            {
+                journal.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore
+            }
+        }
 		
 	}
 	
 	@Override
 	public void start() {
+        openJournal();
 		LOG.info("Starting initial scan");
-        Set<File> files = scanner.scan(true);
-        if (files != null)
+        scanner.scan(true, uploader);
+        flush();
+        if (sharedDispatcher)
+        {
+            // no dedicated thread, the shared pool drives the scans
+            Watcher watcher = scanner instanceof WatcherScanner ? ((WatcherScanner) scanner).watcher : null;
+            registration = dispatcher.register(new Runnable()
+            {
+                public void run()
+                {
+                    cycle();
+                }
+            }, watcher);
+            // only run once the registration is known to cycle()
+            registration.start(poll);
+            return;
+        }
+		super.start();
+	}
+
+    /**
+     * @return a key identifying the watched directory in file names
+     */
+    private String getDirectoryKey()
+    {
+        CRC32 crc = new CRC32();
+        crc.update(watchedDirectory.getAbsolutePath().getBytes());
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Load the checksums reported before the last stop, so that the initial
+     * scan only reports the files that changed in the meantime.  The journal
+     * is kept in the configured state directory, or in the persistent storage
+     * area of the bundle, or else in the temporary directory.
+     */
+    private void openJournal()
+    {
+        File stateDir = getFile(properties, STATE_DIR, null);
+        if (stateDir == null)
+        {
+            stateDir = context.getDataFile("checksums");
+        }
+        if (stateDir == null)
         {
+            stateDir = tmpDir;
+        }
+        File file = new File(stateDir, "checksums-" + getDirectoryKey() + ".journal");
+        ChecksumJournal journal = new ChecksumJournal(file.toPath(), watchedDirectory.getAbsolutePath());
+        try
+        {
+            scanner.initialize(journal.load());
+            scanner.setJournal(journal);
+            this.journal = journal;
+            LOG.info("Loaded checksums of " + watchedDirectory + " from " + file);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Unable to load checksum journal " + file + ", all files will be reported", e);
             try
             {
-                process(files);
+                journal.close();
             }
-            catch (InterruptedException e)
+            catch (IOException e2)
             {
-                throw new RuntimeException(e);
+                // Ignore
             }
         }
-		super.start();
-	}
+    }
 
-	private void process(Set<File> files) throws InterruptedException
+    /**
+     * A single scan of the directory when running on the shared dispatcher.
+     * The next scan is scheduled when the scanner expects pending changes to
+     * be stable, or after the poll interval as a safety net.  File system
+     * events reschedule it immediately.
+     */
+    private void cycle()
     {
-        bundleWatcher.lock.readLock().lockInterruptibly();
+        boolean deferred = false;
         try
         {
-            doProcess(files);
+            // Don't access the disk when the framework is still in a startup phase.
+            if (systemBundle.getState() == Bundle.ACTIVE)
+            {
+                if (isUploadQueueFull())
+                {
+                    // The uploads fall behind, leave the changes to a later cycle
+                    // instead of holding a thread of the shared pool
+                    deferred = true;
+                }
+                else
+                {
+                    scanner.scan(false, uploader);
+                    flush();
+                }
+            }
+            if (Thread.currentThread().isInterrupted())
+            {
+                return;
+            }
         }
-        finally
+        catch (Throwable e)
         {
-        	bundleWatcher.lock.readLock().unlock();
+            try
+            {
+                context.getBundle();
+            }
+            catch (IllegalStateException t)
+            {
+                // bundle has been uninstalled, do not reschedule
+                return;
+            }
+            LOG.error("In main loop, we have serious trouble", e);
+        }
+        long delay = deferred ? poll : scanner.nextScanDelay(poll);
+        WatchDispatcher.Registration registration = this.registration;
+        if (registration != null)
+        {
+            registration.schedule(delay < 0 ? poll : delay);
         }
     }
 
-	private void doProcess(Set<File> files) throws InterruptedException
-    {
-		if (!files.isEmpty()) {
-			LOG.info("Something changes in your watched directory");
+	/**
+	 * Submit the jars found by the scanner for upload, while the scan goes on.
+	 */
+	private final ChangeListener uploader = new ChangeListener()
+	{
+		public void changed(File file, Kind kind, long checksum)
+		{
+			LOG.info("Something changes in your watched directory: " + file + " " + kind);
+			if (kind == Kind.DELETED)
+			{
+				for (UploadRoute route : routes)
+				{
+					route.pipeline.cancel(file);
+				}
+				uploadedDigests.remove(file);
+				reportedChecksums.remove(file);
+				return;
+			}
+			if (!file.getName().endsWith(".jar"))
+			{
+				// nothing to upload, the file is handled already
+				scanner.commitChecksum(file, checksum);
+				return;
+			}
+			Long previous = reportedChecksums.put(file, checksum);
+			UploadPipeline pipeline = route(file).pipeline;
+			// Only our own thread waits for room, not a thread of the shared
+			// pool nor the thread starting the watcher
+			boolean queued = Thread.currentThread() == DirectoryWatcher.this ? pipeline.submit(file) : pipeline.offer(file);
+			if (!queued)
+			{
+				// Reported again by a later scan
+				if (previous != null)
+				{
+					reportedChecksums.put(file, previous);
+				}
+				else
+				{
+					reportedChecksums.remove(file);
+				}
+				scanner.defer(file);
+			}
 		}
-        for(File file : files) {
-        	// if file is a jar
-        	if (file.isFile() && file.getName().endsWith(".jar")) {
-        		LOG.info("This is a Java jar file: " + file.toURI().toString());
-        		if (this.caveRepoService != null) {
-        			LOG.info("Now we can upload to Cave");
-        			CaveRepository caveRepo = this.caveRepoService.getRepositories()[0];
-        			try {
-						caveRepo.upload(file.toURI().toURL());
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+	};
+
+	/**
+	 * Upload a jar to the Cave repository of its route, on an upload thread.
+	 *
+	 * @throws Exception if the upload failed and should be retried
+	 */
+	private void doUpload(UploadRoute route, File file) throws Exception
+    {
+        // a jar not uploaded, Cave being unavailable for instance, is not journaled
+        // and thus reported again after a restart
+        Long checksum = reportedChecksums.get(file);
+        CaveRepository caveRepo = file.isFile() ? route.getRepository() : null;
+        if (caveRepo == null) {
+        	return;
+        }
+        LOG.info("This is a Java jar file: " + file.toURI().toString());
+        long digest = contentDigest ? scanner.getDigest(file) : 0;
+        Long uploaded = uploadedDigests.get(file);
+        if (digest != 0 && uploaded != null && uploaded == digest) {
+        	LOG.info("Content of " + file + " has not changed since last upload, skipping");
+        	commit(file, checksum);
+        	return;
+        }
+        // Cave reads an immutable snapshot, not the file the drop folder may write again
+        try (StagedFile staged = StagedFile.stage(file, stagingDir)) {
+        	String key = inspect(caveRepo, file, staged.getFile());
+        	if (key == null) {
+        		commit(file, checksum);
+        		return;
+        	}
+        	LOG.info("Now we can upload to Cave repository " + caveRepo.getName());
+        	try {
+        		caveRepo.upload(staged.getFile().toURI().toURL());
+        		staged.verify();
+        	} catch (Exception e) {
+        		uploadedBundles.remove(key, file);
+        		throw e;
+        	}
+        }
+        if (digest != 0) {
+        	uploadedDigests.put(file, digest);
+        }
+        commit(file, checksum);
+    }
+
+	/**
+	 * Add a batch of jars to Cave, on the upload thread: the jars are copied
+	 * into the repository location, then the repository metadata is
+	 * generated once for the whole batch.
+	 *
+	 * @throws Exception if the batch failed and should be retried
+	 */
+	private void doUpload(UploadRoute route, List<File> files) throws Exception
+    {
+        CaveRepository caveRepo = route.getRepository();
+        if (caveRepo == null) {
+        	return;
+        }
+        Path location = new File(caveRepo.getLocation()).toPath();
+        Map<File, Long> checksums = new HashMap<File, Long>();
+        Map<File, Long> digests = new HashMap<File, Long>();
+        Map<File, String> keys = new HashMap<File, String>();
+        List<File> copied = new ArrayList<File>();
+        for (File file : files) {
+        	Long checksum = reportedChecksums.get(file);
+        	if (!file.isFile()) {
+        		continue;
+        	}
+        	checksums.put(file, checksum);
+        	long digest = contentDigest ? scanner.getDigest(file) : 0;
+        	Long uploaded = uploadedDigests.get(file);
+        	if (digest != 0 && uploaded != null && uploaded == digest) {
+        		LOG.info("Content of " + file + " has not changed since last upload, skipping");
+        		continue;
+        	}
+        	// copy from a snapshot, next to the target first, so that Cave never reads a partial jar
+        	Path target = location.resolve(file.getName());
+        	Path tmp = location.resolve("." + file.getName() + ".tmp");
+        	try (StagedFile staged = StagedFile.stage(file, stagingDir)) {
+        		String key = inspect(caveRepo, file, staged.getFile());
+        		if (key == null) {
+        			continue;
         		}
+        		keys.put(file, key);
+        		Files.copy(staged.getFile().toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+        		staged.verify();
+        		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        	} catch (IOException e) {
+        		Files.deleteIfExists(tmp);
+        		release(keys);
+        		throw e;
+        	}
+        	digests.put(file, digest);
+        	copied.add(file);
+        }
+        if (copied.isEmpty()) {
+        	commit(checksums);
+        	return;
+        }
+        long start = System.nanoTime();
+        try {
+        	caveRepo.scan();
+        } catch (Exception e) {
+        	release(keys);
+        	throw e;
+        }
+        long time = (System.nanoTime() - start) / 1000000;
+        long batches = metadataBatches.incrementAndGet();
+        long total = metadataTime.addAndGet(time);
+        LOG.info("Added " + copied.size() + " jars to Cave repository " + caveRepo.getName()
+        		+ ", metadata generated in " + time + " ms (" + batches + " batches, "
+        		+ total + " ms in total)");
+        for (Map.Entry<File, Long> entry : digests.entrySet()) {
+        	if (entry.getValue() != 0) {
+        		uploadedDigests.put(entry.getKey(), entry.getValue());
         	}
         }
+        commit(checksums);
+    }
+
+	/**
+	 * Inspect a jar before its upload, reading only its manifest: only valid
+	 * bundles are uploaded, and a bundle already uploaded to the repository
+	 * from another file is not uploaded again.
+	 *
+	 * @param file the jar
+	 * @param snapshot the snapshot of the jar to read
+	 * @return the key of the bundle in {@link #uploadedBundles}, now recording this file,
+	 *         or <code>null</code> if the jar must not be uploaded
+	 */
+	private String inspect(CaveRepository caveRepo, File file, File snapshot)
+    {
+        BundleManifest bundle;
+        try {
+        	bundle = BundleManifest.read(snapshot);
+        } catch (IOException e) {
+        	LOG.info(file + " is not a valid jar, skipping: " + e.getMessage());
+        	return null;
+        }
+        if (bundle == null) {
+        	LOG.info(file + " is not an OSGi bundle, skipping");
+        	return null;
+        }
+        String key = caveRepo.getName() + ":" + bundle;
+        File previous = uploadedBundles.putIfAbsent(key, file);
+        if (previous != null && !previous.equals(file)) {
+        	LOG.info(bundle + " of " + file + " has already been uploaded from " + previous + ", skipping");
+        	return null;
+        }
+        return key;
+    }
+
+	/**
+	 * Journal the checksum a jar was reported with, once it has been uploaded
+	 * or found not to need any upload.  Nothing is journaled when the jar has
+	 * been reported again meanwhile, the new upload will journal it.
+	 */
+	private void commit(File file, Long checksum)
+    {
+        if (checksum != null && reportedChecksums.remove(file, checksum)) {
+        	scanner.commitChecksum(file, checksum);
+        }
+    }
+
+	private void commit(Map<File, Long> checksums)
+    {
+        for (Map.Entry<File, Long> entry : checksums.entrySet()) {
+        	commit(entry.getKey(), entry.getValue());
+        }
+    }
+
+	/**
+	 * Forget the bundles of a failed batch, so that they are uploaded again.
+	 */
+	private void release(Map<File, String> keys)
+    {
+        for (Map.Entry<File, String> entry : keys.entrySet()) {
+        	uploadedBundles.remove(entry.getValue(), entry.getKey());
+        }
     }
 
 }
@@ -0,0 +1,58 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * A pluggable source of file system events for a {@link Watcher}.
+ * Events are delivered through the usual {@link WatchService} and
+ * {@link WatchKey} contract, but a source may report the extra
+ * {@link #ENTRY_COMPLETE} kind when it knows a file has been fully written.
+ */
+public interface EventSource {
+
+    String JDK = "jdk";
+    String INOTIFY = "inotify";
+
+    /**
+     * A file has been closed after being written, or has been renamed into
+     * the watched directory: its content can be trusted without waiting for
+     * its checksum to be stable.
+     */
+    WatchEvent.Kind<Path> ENTRY_COMPLETE = new WatchEvent.Kind<Path>() {
+        public String name() {
+            return "ENTRY_COMPLETE";
+        }
+
+        public Class<Path> type() {
+            return Path.class;
+        }
+
+        @Override
+        public String toString() {
+            return name();
+        }
+    };
+
+    /**
+     * Create a new watch service.
+     *
+     * @param fileSystem the file system of the watched directory
+     * @return a new watch service
+     */
+    WatchService newWatchService(FileSystem fileSystem) throws IOException;
+
+    /**
+     * Watch a directory for created, modified and deleted entries.
+     *
+     * @param service a watch service created by this source
+     * @param dir the directory to watch
+     * @return the key for the directory
+     */
+    WatchKey register(WatchService service, Path dir) throws IOException;
+
+}
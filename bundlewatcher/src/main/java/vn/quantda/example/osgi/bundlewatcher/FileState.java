@@ -0,0 +1,81 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The attributes of a file that are used to compute its checksum, captured
+ * with a single call to the file system, either while walking the tree, when
+ * handling an event or when explicitly read.
+ */
+public final class FileState
+{
+
+    final boolean directory;
+    final long lastModified;
+    final long length;
+    final Object fileKey;
+
+    FileState(boolean directory, long lastModified, long length, Object fileKey)
+    {
+        this.directory = directory;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.fileKey = fileKey;
+    }
+
+    /**
+     * Capture the state from attributes that have already been read.
+     *
+     * @param attrs the file attributes
+     * @return the file state
+     */
+    public static FileState of(BasicFileAttributes attrs)
+    {
+        return new FileState(attrs.isDirectory(),
+                             attrs.lastModifiedTime().toMillis(),
+                             attrs.size(),
+                             attrs.fileKey());
+    }
+
+    /**
+     * Read the state of a file.
+     *
+     * @param file the file
+     * @return the file state or <code>null</code> if the file does not exist
+     */
+    public static FileState read(File file)
+    {
+        try
+        {
+            return of(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public Object getFileKey()
+    {
+        return fileKey;
+    }
+
+}
@@ -0,0 +1,492 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of the files tracked by a {@link Scanner} and its {@link Watcher}:
+ * the checksum last reported by the scanner, the modification time of the
+ * directories it last listed and the modification time last processed by
+ * the watcher.
+ * <p>
+ * Each path segment is interned once and given an id, and the state is kept
+ * in primitive arrays indexed by that id, so a tracked file costs a few
+ * array slots and its name instead of several map entries, boxed values and
+ * paths.  Ids are found through an open addressing table keyed by the parent
+ * id and the segment name, so paths are looked up without being split or
+ * copied.  The children of a directory are linked together, so all the
+ * entries below a directory are found in a time proportional to the size
+ * of that subtree.
+ */
+final class FileTable {
+
+    /**
+     * The value returned for an unknown modification time.
+     */
+    public static final long UNKNOWN = Long.MIN_VALUE;
+
+    private static final byte MODIFIED = 1;
+    private static final byte CHECKSUM = 2;
+    // Checksum or directory seen during the current scan
+    private static final byte MARKED = 4;
+    private static final byte DIRECTORY = 8;
+
+    private static final int NONE = -1;
+
+    private final char separator;
+
+    // Columns indexed by id
+    private String[] names;
+    private int[] parents;
+    private int[] hashes;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] prevSibling;
+    private long[] modified;
+    private long[] checksums;
+    private long[] listed;
+    private byte[] flags;
+
+    // Highest id allocated so far, and ids released for reuse, linked through nextSibling
+    private int top;
+    private int free = NONE;
+
+    // Open addressing table of id + 1, 0 for an empty slot
+    private int[] slots;
+    private int used;
+
+    private int modifiedCount;
+    private int checksumCount;
+
+    public FileTable() {
+        this(File.separatorChar);
+    }
+
+    FileTable(char separator) {
+        this.separator = separator;
+        resize(64);
+        slots = new int[128];
+    }
+
+    //
+    // Checksums reported by the scanner
+    //
+
+    public synchronized long getChecksum(File file) {
+        int id = find(file.getPath(), false);
+        return id != NONE && (flags[id] & CHECKSUM) != 0 ? checksums[id] : 0;
+    }
+
+    public synchronized boolean hasChecksum(File file) {
+        int id = find(file.getPath(), false);
+        return id != NONE && (flags[id] & CHECKSUM) != 0;
+    }
+
+    public synchronized void putChecksum(File file, long checksum) {
+        int id = find(file.getPath(), true);
+        if ((flags[id] & CHECKSUM) == 0) {
+            flags[id] |= CHECKSUM;
+            checksumCount++;
+        }
+        checksums[id] = checksum;
+    }
+
+    public synchronized void removeChecksum(File file) {
+        int id = find(file.getPath(), false);
+        if (id != NONE && (flags[id] & CHECKSUM) != 0) {
+            flags[id] &= ~CHECKSUM;
+            if ((flags[id] & DIRECTORY) == 0) {
+                flags[id] &= ~MARKED;
+            }
+            checksumCount--;
+            release(id);
+        }
+    }
+
+    /**
+     * Retrieve the checksum of a file found by a scan, marking it as still present.
+     *
+     * @return the checksum, or 0 if unknown
+     * @see #sweep()
+     */
+    public synchronized long mark(File file) {
+        int id = find(file.getPath(), false);
+        if (id != NONE && (flags[id] & CHECKSUM) != 0) {
+            flags[id] |= MARKED;
+            return checksums[id];
+        }
+        return 0;
+    }
+
+    /**
+     * Mark all the files with a checksum directly inside a directory as still
+     * present, when the directory is known not to have changed.
+     */
+    public synchronized void markChildren(File dir) {
+        int id = find(dir.getPath(), false);
+        if (id != NONE) {
+            for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+                if ((flags[child] & CHECKSUM) != 0) {
+                    flags[child] |= MARKED;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the files that have a checksum but have not been marked since the
+     * last sweep, i.e. the files that have been removed, and clear all marks.
+     * The directories that have not been marked are forgotten.
+     *
+     * @return the removed files
+     */
+    public synchronized List<File> sweep() {
+        List<File> removed = Collections.emptyList();
+        for (int id = 0; id < top; id++) {
+            if ((flags[id] & CHECKSUM) != 0 && (flags[id] & MARKED) == 0) {
+                if (removed.isEmpty()) {
+                    removed = new ArrayList<File>();
+                }
+                removed.add(new File(path(id)));
+            }
+            if ((flags[id] & DIRECTORY) != 0 && (flags[id] & MARKED) == 0) {
+                flags[id] &= ~DIRECTORY;
+                release(id);
+            }
+            flags[id] &= ~MARKED;
+        }
+        return removed;
+    }
+
+    /**
+     * List all the files that have a checksum.
+     */
+    public synchronized List<File> checksumFiles() {
+        List<File> files = new ArrayList<File>(checksumCount);
+        for (int id = 0; id < top; id++) {
+            if ((flags[id] & CHECKSUM) != 0) {
+                files.add(new File(path(id)));
+            }
+        }
+        return files;
+    }
+
+    public synchronized int checksumCount() {
+        return checksumCount;
+    }
+
+    //
+    // Directories listed by the scanner
+    //
+
+    /**
+     * @return the modification time of the directory when it was last listed, or {@link #UNKNOWN}
+     */
+    public synchronized long getDirectory(File dir) {
+        int id = find(dir.getPath(), false);
+        return id != NONE && (flags[id] & DIRECTORY) != 0 ? listed[id] : UNKNOWN;
+    }
+
+    /**
+     * Record a directory seen during the current scan, with the modification
+     * time it had when it was listed.
+     *
+     * @param dir the directory
+     * @param modified the modification time, or {@link #UNKNOWN} if it must be listed again
+     */
+    public synchronized void putDirectory(File dir, long modified) {
+        int id = find(dir.getPath(), true);
+        flags[id] |= DIRECTORY | MARKED;
+        listed[id] = modified;
+    }
+
+    /**
+     * List the known sub directories of a directory.
+     */
+    public synchronized List<File> subdirectories(File dir) {
+        List<File> subdirs = new ArrayList<File>();
+        int id = find(dir.getPath(), false);
+        if (id != NONE) {
+            for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+                if ((flags[child] & DIRECTORY) != 0) {
+                    subdirs.add(new File(dir, names[child]));
+                }
+            }
+        }
+        return subdirs;
+    }
+
+    //
+    // Modification times processed by the watcher
+    //
+
+    /**
+     * @return the modification time, or {@link #UNKNOWN}
+     */
+    public synchronized long getModified(Path path) {
+        int id = find(path.toString(), false);
+        return id != NONE && (flags[id] & MODIFIED) != 0 ? modified[id] : UNKNOWN;
+    }
+
+    public synchronized void putModified(Path path, long time) {
+        int id = find(path.toString(), true);
+        if ((flags[id] & MODIFIED) == 0) {
+            flags[id] |= MODIFIED;
+            modifiedCount++;
+        }
+        modified[id] = time;
+    }
+
+    /**
+     * Forget the modification time of the given path and all the paths below it.
+     *
+     * @param path the root of the subtree
+     * @return the paths that had a modification time, with that time
+     */
+    public synchronized Map<Path, Long> removeAllModified(Path path) {
+        Map<Path, Long> removed = new LinkedHashMap<Path, Long>();
+        int id = find(path.toString(), false);
+        if (id != NONE) {
+            collect(id, path, removed);
+            release(id);
+        }
+        return removed;
+    }
+
+    /**
+     * List the direct children of the given directory that are tracked,
+     * either themselves or through their descendants.
+     */
+    public synchronized List<Path> children(Path dir) {
+        List<Path> children = new ArrayList<Path>();
+        int id = find(dir.toString(), false);
+        if (id != NONE) {
+            for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+                children.add(dir.resolve(names[child]));
+            }
+        }
+        return children;
+    }
+
+    public synchronized int modifiedCount() {
+        return modifiedCount;
+    }
+
+    public synchronized void clearModified() {
+        for (int id = 0; id < top; id++) {
+            if ((flags[id] & MODIFIED) != 0) {
+                flags[id] &= ~MODIFIED;
+                release(id);
+            }
+        }
+        modifiedCount = 0;
+    }
+
+    private void collect(int id, Path path, Map<Path, Long> removed) {
+        if ((flags[id] & MODIFIED) != 0) {
+            removed.put(path, modified[id]);
+            flags[id] &= ~MODIFIED;
+            modifiedCount--;
+        }
+        for (int child = firstChild[id]; child != NONE; ) {
+            int next = nextSibling[child];
+            collect(child, path.resolve(names[child]), removed);
+            release(child);
+            child = next;
+        }
+    }
+
+    //
+    // Interning of paths
+    //
+
+    /**
+     * Find the id of a path, splitting it on the separator without copying it.
+     */
+    private int find(String path, boolean create) {
+        int id = NONE;
+        int length = path.length();
+        int start = 0;
+        while (true) {
+            int end = path.indexOf(separator, start);
+            if (end < 0) {
+                end = length;
+            }
+            // the leading empty segment stands for the root of absolute paths
+            if (end > start || start == 0) {
+                id = lookup(id, path, start, end, create);
+                if (id == NONE) {
+                    return NONE;
+                }
+            }
+            if (end == length) {
+                return id;
+            }
+            start = end + 1;
+        }
+    }
+
+    private int lookup(int parent, String path, int start, int end, boolean create) {
+        int hash = hash(parent, path, start, end);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        int length = end - start;
+        for (int e = slots[i]; e != 0; e = slots[i = (i + 1) & mask]) {
+            int id = e - 1;
+            if (hashes[id] == hash && parents[id] == parent && names[id].length() == length
+                    && names[id].regionMatches(0, path, start, length)) {
+                return id;
+            }
+        }
+        if (!create) {
+            return NONE;
+        }
+        int id = allocate();
+        names[id] = path.substring(start, end);
+        parents[id] = parent;
+        hashes[id] = hash;
+        firstChild[id] = NONE;
+        prevSibling[id] = NONE;
+        nextSibling[id] = NONE;
+        if (parent != NONE) {
+            int first = firstChild[parent];
+            nextSibling[id] = first;
+            if (first != NONE) {
+                prevSibling[first] = id;
+            }
+            firstChild[parent] = id;
+        }
+        slots[i] = id + 1;
+        if (++used * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Release an id that does not hold any state nor has any child anymore,
+     * and then its parents in turn.
+     */
+    private void release(int id) {
+        while (id != NONE && names[id] != null && flags[id] == 0 && firstChild[id] == NONE) {
+            int parent = parents[id];
+            if (parent != NONE) {
+                if (prevSibling[id] != NONE) {
+                    nextSibling[prevSibling[id]] = nextSibling[id];
+                } else {
+                    firstChild[parent] = nextSibling[id];
+                }
+                if (nextSibling[id] != NONE) {
+                    prevSibling[nextSibling[id]] = prevSibling[id];
+                }
+            }
+            removeSlot(id);
+            names[id] = null;
+            parents[id] = NONE;
+            nextSibling[id] = free;
+            free = id;
+            id = parent;
+        }
+    }
+
+    /**
+     * Remove an id from the open addressing table, shifting back the following
+     * entries of the same cluster so that no tombstone is needed.
+     */
+    private void removeSlot(int id) {
+        int mask = slots.length - 1;
+        int i = hashes[id] & mask;
+        while (slots[i] != id + 1) {
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int e = slots[j];
+            if (e == 0) {
+                break;
+            }
+            int k = hashes[e - 1] & mask;
+            // the entry at j can stay if its home slot is cyclically in (i, j]
+            if (i <= j ? i < k && k <= j : i < k || k <= j) {
+                continue;
+            }
+            slots[i] = e;
+            i = j;
+        }
+        slots[i] = 0;
+        used--;
+    }
+
+    private int allocate() {
+        if (free != NONE) {
+            int id = free;
+            free = nextSibling[id];
+            return id;
+        }
+        if (top == names.length) {
+            resize(names.length * 2);
+        }
+        return top++;
+    }
+
+    private void resize(int capacity) {
+        names = names == null ? new String[capacity] : Arrays.copyOf(names, capacity);
+        parents = parents == null ? new int[capacity] : Arrays.copyOf(parents, capacity);
+        hashes = hashes == null ? new int[capacity] : Arrays.copyOf(hashes, capacity);
+        firstChild = firstChild == null ? new int[capacity] : Arrays.copyOf(firstChild, capacity);
+        nextSibling = nextSibling == null ? new int[capacity] : Arrays.copyOf(nextSibling, capacity);
+        prevSibling = prevSibling == null ? new int[capacity] : Arrays.copyOf(prevSibling, capacity);
+        modified = modified == null ? new long[capacity] : Arrays.copyOf(modified, capacity);
+        checksums = checksums == null ? new long[capacity] : Arrays.copyOf(checksums, capacity);
+        listed = listed == null ? new long[capacity] : Arrays.copyOf(listed, capacity);
+        flags = flags == null ? new byte[capacity] : Arrays.copyOf(flags, capacity);
+    }
+
+    private void rehash(int size) {
+        slots = new int[size];
+        int mask = size - 1;
+        for (int id = 0; id < top; id++) {
+            if (names[id] != null) {
+                int i = hashes[id] & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = id + 1;
+            }
+        }
+    }
+
+    private String path(int id) {
+        if (parents[id] == NONE) {
+            return names[id].isEmpty() ? String.valueOf(separator) : names[id];
+        }
+        StringBuilder sb = new StringBuilder();
+        append(sb, id);
+        return sb.toString();
+    }
+
+    private void append(StringBuilder sb, int id) {
+        if (parents[id] != NONE) {
+            append(sb, parents[id]);
+            sb.append(separator);
+        }
+        sb.append(names[id]);
+    }
+
+    private static int hash(int parent, String path, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        h = h * 0x9e3779b9 + parent;
+        return h ^ (h >>> 16);
+    }
+
+}
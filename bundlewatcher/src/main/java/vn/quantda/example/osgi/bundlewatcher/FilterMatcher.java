@@ -0,0 +1,188 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A precompiled matcher for the regular expression given by
+ * {@link DirectoryWatcher#FILTER}.
+ * <p>
+ * The common shapes of expressions (<code>.*</code>, a literal, a literal
+ * prefix and/or suffix around <code>.*</code>, such as <code>.*\.jar</code>)
+ * are matched on the string directly.  Other expressions fall back to the
+ * regular expression, using a matcher reused by each thread.  When matching
+ * a path below a root directory, the relative part is matched in place, so
+ * neither a relativized {@link Path} nor a substring is created.
+ */
+public final class FilterMatcher implements PathMatcher {
+
+    private final Pattern pattern;
+    // Fast path: the expression is prefix.*suffix, prefix or suffix being possibly empty,
+    // or an exact literal when any is false
+    private final boolean fast;
+    private final boolean any;
+    private final String prefix;
+    private final String suffix;
+
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>();
+    private final ThreadLocal<Region> regions = new ThreadLocal<Region>();
+
+    private FilterMatcher(String regex) {
+        this.pattern = Pattern.compile(regex);
+        int wildcard = regex.indexOf(".*");
+        String head = wildcard >= 0 ? literal(regex.substring(0, wildcard)) : literal(regex);
+        String tail = wildcard >= 0 ? literal(regex.substring(wildcard + 2)) : "";
+        this.fast = head != null && tail != null;
+        this.any = wildcard >= 0;
+        this.prefix = head;
+        this.suffix = tail;
+    }
+
+    /**
+     * Compile a filter.
+     *
+     * @param regex the regular expression
+     * @return the matcher, or <code>null</code> if the expression is empty
+     */
+    public static FilterMatcher compile(String regex) {
+        if (regex == null || regex.length() == 0) {
+            return null;
+        }
+        return new FilterMatcher(regex);
+    }
+
+    /**
+     * Match a relative path.
+     */
+    public boolean matches(Path path) {
+        return matches(path.toString());
+    }
+
+    /**
+     * Match a path located below the given root, as if it had been relativized.
+     *
+     * @param root the root directory
+     * @param path a path below the root
+     * @return <code>true</code> if the relative path matches
+     */
+    public boolean matches(Path root, Path path) {
+        String r = root.toString();
+        String s = path.toString();
+        if (!s.startsWith(r) || s.length() == r.length()) {
+            return matches(root.relativize(path));
+        }
+        int offset = r.length();
+        if (!r.endsWith(path.getFileSystem().getSeparator())) {
+            offset++;
+        }
+        return matches(s, offset);
+    }
+
+    /**
+     * Match a file name or a relative path.
+     */
+    public boolean matches(CharSequence name) {
+        return matches(name, 0);
+    }
+
+    private boolean matches(CharSequence s, int offset) {
+        int length = s.length() - offset;
+        if (fast) {
+            if (!any) {
+                return length == prefix.length() && regionMatches(s, offset, prefix);
+            }
+            return length >= prefix.length() + suffix.length()
+                    && regionMatches(s, offset, prefix)
+                    && regionMatches(s, s.length() - suffix.length(), suffix);
+        }
+        Region region = regions.get();
+        if (region == null) {
+            region = new Region();
+            regions.set(region);
+        }
+        region.set(s, offset);
+        Matcher matcher = matchers.get();
+        if (matcher == null) {
+            matcher = pattern.matcher(region);
+            matchers.set(matcher);
+        } else {
+            matcher.reset(region);
+        }
+        try {
+            return matcher.matches();
+        } finally {
+            region.set(null, 0);
+        }
+    }
+
+    private static boolean regionMatches(CharSequence s, int offset, String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (s.charAt(offset + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unescape a regular expression made only of literal characters.
+     *
+     * @return the literal or <code>null</code> if the expression is not a literal
+     */
+    private static String literal(String regex) {
+        StringBuilder sb = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i >= regex.length() || Character.isLetterOrDigit(regex.charAt(i))) {
+                    // character classes such as \d or back references
+                    return null;
+                }
+                sb.append(regex.charAt(i));
+            } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern.pattern();
+    }
+
+    /**
+     * A view on the end of a string, reused to match without creating substrings.
+     */
+    private static class Region implements CharSequence {
+        private CharSequence s;
+        private int offset;
+
+        void set(CharSequence s, int offset) {
+            this.s = s;
+            this.offset = offset;
+        }
+
+        public int length() {
+            return s.length() - offset;
+        }
+
+        public char charAt(int index) {
+            return s.charAt(offset + index);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return s.subSequence(offset + start, offset + end);
+        }
+
+        @Override
+        public String toString() {
+            return s.subSequence(offset, s.length()).toString();
+        }
+    }
+
+}
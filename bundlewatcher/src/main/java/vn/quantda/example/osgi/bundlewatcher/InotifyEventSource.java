@@ -0,0 +1,418 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+
+/**
+ * An event source using Linux inotify directly through JNA.
+ * Unlike the JDK watch service, it reports when a file is closed after
+ * being written ({@code IN_CLOSE_WRITE}) and when a file is renamed into a
+ * watched directory ({@code IN_MOVED_TO}) as {@link EventSource#ENTRY_COMPLETE},
+ * so that such files can be processed without waiting for their checksum
+ * to be stable.
+ * <p>
+ * JNA is an optional dependency: use {@link #isAvailable()} before creating
+ * this source.
+ */
+public class InotifyEventSource implements EventSource {
+
+    private static final int IN_MODIFY      = 0x00000002;
+    private static final int IN_CLOSE_WRITE = 0x00000008;
+    private static final int IN_MOVED_FROM  = 0x00000040;
+    private static final int IN_MOVED_TO    = 0x00000080;
+    private static final int IN_CREATE      = 0x00000100;
+    private static final int IN_DELETE      = 0x00000200;
+    private static final int IN_Q_OVERFLOW  = 0x00004000;
+    private static final int IN_IGNORED     = 0x00008000;
+    private static final int IN_ONLYDIR     = 0x01000000;
+    private static final int IN_ISDIR       = 0x40000000;
+    private static final int IN_NONBLOCK    = 00004000;
+    private static final int IN_CLOEXEC     = 02000000;
+
+    private static final int WATCH_MASK = IN_MODIFY | IN_CLOSE_WRITE | IN_MOVED_FROM | IN_MOVED_TO
+            | IN_CREATE | IN_DELETE | IN_ONLYDIR;
+
+    private static final short POLLIN = 0x0001;
+    private static final int ENOSPC = 28;
+
+    // Same limit as the JDK watch service before events are replaced by an overflow
+    private static final int MAX_EVENT_LIST_SIZE = 512;
+
+    private static LibC libc;
+
+    public interface LibC extends Library {
+        int inotify_init1(int flags);
+        int inotify_add_watch(int fd, String pathname, int mask);
+        int inotify_rm_watch(int fd, int wd);
+        int poll(PollFd fds, int nfds, int timeout);
+        NativeLong read(int fd, byte[] buf, NativeLong count);
+        int close(int fd);
+    }
+
+    public static class PollFd extends Structure {
+        public int fd;
+        public short events;
+        public short revents;
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("fd", "events", "revents");
+        }
+    }
+
+    /**
+     * Check if inotify can be used, i.e. if JNA is available and the
+     * platform is Linux.
+     *
+     * @return <code>true</code> if this source can be used
+     */
+    public static boolean isAvailable() {
+        try {
+            lib();
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static synchronized LibC lib() {
+        if (libc == null) {
+            if (!"Linux".equals(System.getProperty("os.name"))) {
+                throw new UnsupportedOperationException("inotify is only available on Linux");
+            }
+            libc = (LibC) Native.loadLibrary("c", LibC.class);
+        }
+        return libc;
+    }
+
+    public WatchService newWatchService(FileSystem fileSystem) throws IOException {
+        return new InotifyWatchService(lib());
+    }
+
+    public WatchKey register(WatchService service, Path dir) throws IOException {
+        if (!(service instanceof InotifyWatchService)) {
+            throw new ProviderMismatchException();
+        }
+        return ((InotifyWatchService) service).register(dir);
+    }
+
+    static class InotifyWatchService implements WatchService, Runnable {
+
+        private final Logger LOG = LoggerFactory.getLogger(InotifyWatchService.class);
+
+        // Put in the queue to wake up threads waiting on a closed service
+        private final WatchKey CLOSE_KEY = new InotifyKey(this, null, -1);
+
+        private final LibC lib;
+        private final int fd;
+        private final Map<Integer, InotifyKey> keys = new ConcurrentHashMap<Integer, InotifyKey>();
+        private final LinkedBlockingDeque<WatchKey> pending = new LinkedBlockingDeque<WatchKey>();
+        private final Charset charset = Charset.defaultCharset();
+        private final Thread reader;
+        private volatile boolean closed;
+
+        InotifyWatchService(LibC lib) throws IOException {
+            this.lib = lib;
+            this.fd = lib.inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+            if (fd < 0) {
+                throw new IOException("inotify_init1 failed, errno " + Native.getLastError());
+            }
+            this.reader = new Thread(this, "bundlewatcher-inotify");
+            this.reader.setDaemon(true);
+            this.reader.start();
+        }
+
+        synchronized WatchKey register(Path dir) throws IOException {
+            checkOpen();
+            int wd = lib.inotify_add_watch(fd, dir.toString(), WATCH_MASK);
+            if (wd < 0) {
+                int errno = Native.getLastError();
+                if (errno == ENOSPC) {
+                    throw new IOException("User limit of inotify watches reached");
+                }
+                throw new IOException("inotify_add_watch failed for " + dir + ", errno " + errno);
+            }
+            InotifyKey key = keys.get(wd);
+            if (key == null || !key.isValid()) {
+                key = new InotifyKey(this, dir, wd);
+                keys.put(wd, key);
+            }
+            return key;
+        }
+
+        void cancel(InotifyKey key) {
+            keys.remove(key.wd);
+            if (!closed) {
+                lib.inotify_rm_watch(fd, key.wd);
+            }
+        }
+
+        void enqueue(InotifyKey key) {
+            pending.offer(key);
+        }
+
+        public void run() {
+            byte[] buf = new byte[64 * 1024];
+            PollFd pollFd = new PollFd();
+            try {
+                while (!closed) {
+                    pollFd.fd = fd;
+                    pollFd.events = POLLIN;
+                    pollFd.revents = 0;
+                    // wake up regularly to notice the service has been closed
+                    if (lib.poll(pollFd, 1, 500) <= 0) {
+                        continue;
+                    }
+                    long n = lib.read(fd, buf, new NativeLong(buf.length)).longValue();
+                    if (n > 0) {
+                        parse(buf, (int) n);
+                    }
+                }
+            } catch (Throwable t) {
+                LOG.warn("Error reading inotify events", t);
+            } finally {
+                lib.close(fd);
+            }
+        }
+
+        private void parse(byte[] buf, int length) {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, length).order(ByteOrder.nativeOrder());
+            while (bb.remaining() >= 16) {
+                int wd = bb.getInt();
+                int mask = bb.getInt();
+                bb.getInt(); // cookie
+                int len = bb.getInt();
+                String name = null;
+                if (len > 0) {
+                    int start = bb.position();
+                    int end = start;
+                    while (end < start + len && buf[end] != 0) {
+                        end++;
+                    }
+                    name = new String(buf, start, end - start, charset);
+                    bb.position(start + len);
+                }
+                dispatch(wd, mask, name);
+            }
+        }
+
+        private void dispatch(int wd, int mask, String name) {
+            if ((mask & IN_Q_OVERFLOW) != 0) {
+                for (InotifyKey key : keys.values()) {
+                    key.signalEvent(OVERFLOW, null);
+                }
+                return;
+            }
+            InotifyKey key = keys.get(wd);
+            if (key == null) {
+                return;
+            }
+            if ((mask & IN_IGNORED) != 0) {
+                // the directory has been deleted or unmounted
+                keys.remove(wd);
+                key.invalidate();
+                return;
+            }
+            Path context = name != null ? key.dir.getFileSystem().getPath(name) : null;
+            boolean isDir = (mask & IN_ISDIR) != 0;
+            if ((mask & IN_CREATE) != 0) {
+                key.signalEvent(ENTRY_CREATE, context);
+            }
+            if ((mask & IN_MOVED_TO) != 0) {
+                key.signalEvent(isDir ? ENTRY_CREATE : ENTRY_COMPLETE, context);
+            }
+            if ((mask & IN_MODIFY) != 0) {
+                key.signalEvent(ENTRY_MODIFY, context);
+            }
+            if ((mask & IN_CLOSE_WRITE) != 0) {
+                key.signalEvent(ENTRY_COMPLETE, context);
+            }
+            if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+                key.signalEvent(ENTRY_DELETE, context);
+            }
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new ClosedWatchServiceException();
+            }
+        }
+
+        private WatchKey checkKey(WatchKey key) {
+            if (key == CLOSE_KEY) {
+                // there may be other threads waiting
+                pending.offer(CLOSE_KEY);
+            }
+            checkOpen();
+            return key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (InotifyKey key : keys.values()) {
+                key.invalidate();
+            }
+            keys.clear();
+            pending.clear();
+            pending.offer(CLOSE_KEY);
+        }
+
+        @Override
+        public WatchKey poll() {
+            checkOpen();
+            return checkKey(pending.poll());
+        }
+
+        @Override
+        public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+            checkOpen();
+            return checkKey(pending.poll(timeout, unit));
+        }
+
+        @Override
+        public WatchKey take() throws InterruptedException {
+            checkOpen();
+            return checkKey(pending.take());
+        }
+    }
+
+    static class InotifyKey implements WatchKey {
+
+        private final InotifyWatchService service;
+        final Path dir;
+        final int wd;
+        private volatile boolean valid = true;
+        private List<WatchEvent<?>> events = new ArrayList<WatchEvent<?>>();
+        private boolean signalled;
+
+        InotifyKey(InotifyWatchService service, Path dir, int wd) {
+            this.service = service;
+            this.dir = dir;
+            this.wd = wd;
+        }
+
+        synchronized void signalEvent(WatchEvent.Kind<?> kind, Path context) {
+            // collapse repeated modifications of the same entry
+            if (kind == ENTRY_MODIFY && !events.isEmpty()) {
+                Event last = (Event) events.get(events.size() - 1);
+                if (last.kind == ENTRY_MODIFY && context != null && context.equals(last.context)) {
+                    last.count++;
+                    return;
+                }
+            }
+            if (events.size() >= MAX_EVENT_LIST_SIZE) {
+                events.clear();
+                kind = OVERFLOW;
+                context = null;
+            }
+            events.add(new Event(kind, context));
+            signal();
+        }
+
+        private void signal() {
+            if (!signalled) {
+                signalled = true;
+                service.enqueue(this);
+            }
+        }
+
+        synchronized void invalidate() {
+            valid = false;
+            // let the owner notice the key is no longer valid
+            signal();
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        public synchronized List<WatchEvent<?>> pollEvents() {
+            List<WatchEvent<?>> result = events;
+            events = new ArrayList<WatchEvent<?>>();
+            return result;
+        }
+
+        public synchronized boolean reset() {
+            if (!valid) {
+                return false;
+            }
+            if (signalled) {
+                if (events.isEmpty()) {
+                    signalled = false;
+                } else {
+                    service.enqueue(this);
+                }
+            }
+            return true;
+        }
+
+        public void cancel() {
+            if (valid) {
+                valid = false;
+                service.cancel(this);
+            }
+        }
+
+        public Path watchable() {
+            return dir;
+        }
+    }
+
+    static class Event implements WatchEvent<Object> {
+        final Kind<?> kind;
+        final Path context;
+        int count = 1;
+
+        Event(Kind<?> kind, Path context) {
+            this.kind = kind;
+            this.context = context;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Kind<Object> kind() {
+            return (Kind<Object>) kind;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public Object context() {
+            return context;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The default event source, backed by the JDK {@link WatchService}.
+ * It never reports {@link EventSource#ENTRY_COMPLETE}.
+ */
+public class JdkEventSource implements EventSource {
+
+    public WatchService newWatchService(FileSystem fileSystem) throws IOException {
+        return fileSystem.newWatchService();
+    }
+
+    public WatchKey register(WatchService service, Path dir) throws IOException {
+        return dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    }
+
+}
@@ -4,12 +4,19 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.zip.CRC32;
 
 public class Scanner implements Closeable {
@@ -25,8 +32,40 @@ public class Scanner implements Closeable {
     final boolean recurseSubdir;
 
     // Store checksums of files or directories
-    Map<File, Long> lastChecksums = new HashMap<File, Long>();
-    Map<File, Long> storedChecksums = new HashMap<File, Long>();
+    final FileTable table = new FileTable();
+    // Decide when changed files are stable
+    StabilityTracker stability = new StabilityTracker();
+    // Where stored checksums are kept across restarts
+    ChecksumJournal journal;
+    // The file being handed to the listener, the checksum it was known with before and its new one
+    File reporting;
+    long reportedBefore;
+    long reportedChecksum;
+    // Files the listener could not take, with the checksum they were reported with
+    final Map<File, Long> deferred = new HashMap<File, Long>();
+
+    // Whether the content of a file must be stable too before it is reported
+    boolean contentDigest;
+    // Content digests of files, along with the checksum of the attributes they were computed for,
+    // also read by the upload threads
+    Map<File, Digest> digests = new ConcurrentHashMap<File, Digest>();
+
+    // Number of threads listing sub directories in recurse mode, and their pool once needed
+    int parallelism = 1;
+    ForkJoinPool pool;
+
+    // Time between two scans listing all the directories, 0 to always list them
+    long verifyInterval;
+    long lastVerify;
+    // Whether unchanged directories are skipped during the current scan
+    boolean shortcut;
+    // Number of changed files not reported yet in the directory being processed
+    int unsettled;
+
+    // Budget of a single scan, 0 for no limit, and the directories being walked by the current rotation
+    long sliceTime;
+    int sliceEntries;
+    Deque<Frame> rotation;
 
     /**
      * Create a scanner for the specified directory
@@ -48,14 +87,14 @@ public class Scanner implements Closeable {
     public Scanner(File directory, final String filterString, String subdirMode)
     {
         this.directory = canon(directory);
-        if (filterString != null && filterString.length() > 0)
+        final FilterMatcher matcher = FilterMatcher.compile(filterString);
+        if (matcher != null)
         {
             this.filter = new FilenameFilter()
             {
-                Pattern pattern = Pattern.compile(filterString);
                 public boolean accept(File dir, String name)
                 {
-                    return pattern.matcher(name).matches();
+                    return matcher.matches(name);
                 }
             };
         }
@@ -78,75 +117,723 @@ public class Scanner implements Closeable {
      */
     public void initialize(Map<File, Long> checksums)
     {
-        storedChecksums.putAll(checksums);
+        for (Map.Entry<File, Long> entry : checksums.entrySet())
+        {
+            table.putChecksum(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Record the checksums in a journal, so that they can be given to
+     * {@link #initialize(Map)} after a restart.  The checksum of a reported
+     * file is only recorded once the file has been handled, see
+     * {@link #commitChecksum(File, long)}.
+     *
+     * @param journal the journal, or <code>null</code>
+     */
+    public void setJournal(ChecksumJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    void storeChecksum(File file, long checksum)
+    {
+        table.putChecksum(file, checksum);
+        if (journal != null)
+        {
+            journal.put(file, checksum);
+        }
+    }
+
+    /**
+     * Record the checksum of a reported file, without writing it to the
+     * journal until the file has been handled.
+     */
+    void reportChecksum(File file, long checksum)
+    {
+        table.putChecksum(file, checksum);
+    }
+
+    /**
+     * Write the checksum of a reported file to the journal, once the file
+     * has been handled, so that it is not reported again after a restart.
+     * A file that is never committed is reported again by the initial scan.
+     *
+     * @param file the file
+     * @param checksum the checksum the file was reported with
+     */
+    public void commitChecksum(File file, long checksum)
+    {
+        if (journal != null)
+        {
+            journal.put(file, checksum);
+        }
+    }
+
+    void forgetChecksum(File file)
+    {
+        table.removeChecksum(file);
+        if (journal != null)
+        {
+            journal.remove(file);
+        }
+    }
+
+    /**
+     * Hand a new or modified file, whose new checksum has been recorded, to
+     * the listener.
+     *
+     * @param listener the listener receiving the changes
+     * @param file the file
+     * @param storedChecksum the checksum the file was known with before, 0 if it was not known
+     * @param newChecksum the new checksum of the file
+     */
+    void changed(ChangeListener listener, File file, long storedChecksum, long newChecksum)
+    {
+        reporting = file;
+        reportedBefore = storedChecksum;
+        reportedChecksum = newChecksum;
+        deferred.remove(file);
+        try
+        {
+            listener.changed(file, storedChecksum == 0 ? ChangeListener.Kind.CREATED : ChangeListener.Kind.MODIFIED, newChecksum);
+        }
+        finally
+        {
+            reporting = null;
+        }
+    }
+
+    /**
+     * Report a file again in a later scan, as if its change had not been
+     * reported.  Called by the listener, while it handles the change of that
+     * file, when it can not take the file right now.  The file is reported
+     * again by the next scan without waiting for it to be stable, unless it
+     * has changed since.
+     *
+     * @param file the new or modified file being handled by the listener
+     */
+    public void defer(File file)
+    {
+        if (!file.equals(reporting))
+        {
+            throw new IllegalStateException("The change of " + file + " is not being handled");
+        }
+        if (reportedBefore == 0)
+        {
+            table.removeChecksum(file);
+        }
+        else
+        {
+            table.putChecksum(file, reportedBefore);
+        }
+        deferred.put(file, reportedChecksum);
+    }
+
+    /**
+     * Check whether a deferred file is still as it was when it was reported.
+     */
+    boolean isDeferred(File file, long checksum)
+    {
+        Long reported = deferred.get(file);
+        return reported != null && reported == checksum;
     }
 
     /**
      * Report a set of new, modified or deleted files.
+     *
+     * @param reportImmediately report all files immediately without waiting for the checksum to be stable
+     * @return a list of changes on the files included in the directory
+     * @see #scan(boolean, ChangeListener)
+     */
+    public Set<File> scan(boolean reportImmediately)
+    {
+        final Set<File> files = new TreeSet<File>();
+        scan(reportImmediately, new ChangeListener()
+        {
+            public void changed(File file, Kind kind, long checksum)
+            {
+                files.add(file);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Find new, modified or deleted files and give each of them to the
+     * listener as soon as it is found.
      * Modifications are checked against a computed checksum on some file
-     * attributes to detect any modification.
+     * attributes to detect any modification, and reported once the file
+     * is stable according to the {@link StabilityTracker}.
      * Upon restart, such checksums are not known so that all files will
      * be reported as modified. 
+     * <p>
+     * When a budget is set, a single call only processes a slice of the tree
+     * and the next call resumes where it stopped.  Deleted files are
+     * reported once a whole rotation over the tree has been done.
      *
      * @param reportImmediately report all files immediately without waiting for the checksum to be stable
-     * @return a list of changes on the files included in the directory
+     * @param listener the listener receiving the changes
+     * @return <code>false</code> if the directory could not be listed
+     * @see #setSliceBudget(long, int)
      */
-    public Set<File> scan(boolean reportImmediately)
+    public boolean scan(boolean reportImmediately, ChangeListener listener)
     {
-        File[] list = directory.listFiles(filter);
-        Set<File> files = processFiles(reportImmediately, list);
-        return new TreeSet<>(files);
+        long now = System.currentTimeMillis();
+        boolean sliced = !reportImmediately && (sliceTime > 0 || sliceEntries > 0);
+        if (!sliced)
+        {
+            // A whole rotation is done at once, restart it from the beginning
+            closeRotation();
+        }
+        boolean listed;
+        if (rotation == null && !sliced && recurseSubdir && parallelism > 1)
+        {
+            listed = processTree(rootModified(now), reportImmediately, now, listener);
+        }
+        else
+        {
+            listed = (rotation != null || startRotation(rootModified(now)))
+                    && processRotation(reportImmediately, now, listener, sliced);
+        }
+        if (listed && rotation == null)
+        {
+            // Make sure we'll handle a file that has been deleted
+            for (File file : table.sweep())
+            {
+                long checksum = table.getChecksum(file);
+                // Remove no longer used checksums
+                forgetChecksum(file);
+                stability.remove(file);
+                digests.remove(file);
+                deferred.remove(file);
+                listener.changed(file, ChangeListener.Kind.DELETED, checksum);
+            }
+            // Forget the deferred files deleted before they could be reported again
+            for (Iterator<File> iterator = deferred.keySet().iterator(); iterator.hasNext(); )
+            {
+                if (!iterator.next().exists())
+                {
+                    iterator.remove();
+                }
+            }
+            if (verifyInterval > 0 && !shortcut)
+            {
+                lastVerify = now;
+            }
+        }
+        if (journal != null)
+        {
+            journal.sync();
+        }
+        return listed;
     }
 
-    private Set<File> processFiles(boolean reportImmediately, File[] list)
+    /**
+     * Read the modification time of the watched directory when unchanged
+     * directories may be skipped, and decide whether they are skipped during
+     * the rotation starting now.
+     */
+    private long rootModified(long now)
     {
-        if (list == null)
+        if (verifyInterval <= 0)
         {
-            return new HashSet<>();
+            return FileTable.UNKNOWN;
         }
-        Set<File> files = new HashSet<File>();
-        Set<File> removed = new HashSet<File>(storedChecksums.keySet());
-        for (File file : list)
+        shortcut = now - lastVerify < verifyInterval;
+        FileState state = FileState.read(directory);
+        return state != null ? state.getLastModified() : FileTable.UNKNOWN;
+    }
+
+    private boolean startRotation(long modified)
+    {
+        Frame root = openFrame(directory, modified);
+        if (root == null)
+        {
+            return false;
+        }
+        rotation = new ArrayDeque<Frame>();
+        rotation.push(root);
+        return true;
+    }
+
+    /**
+     * Walk the tree depth first from where the last slice stopped, until the
+     * end of the tree or until the budget of the slice is exhausted.
+     *
+     * @return <code>false</code> if the watched directory could not be listed
+     */
+    private boolean processRotation(final boolean reportImmediately, final long now, final ChangeListener listener, boolean sliced)
+    {
+        long deadline = sliced && sliceTime > 0 ? System.nanoTime() + sliceTime * 1000000L : Long.MAX_VALUE;
+        int budget = sliced && sliceEntries > 0 ? sliceEntries : Integer.MAX_VALUE;
+        EntryVisitor visitor = new EntryVisitor()
+        {
+            public void visit(File file, FileState state)
+            {
+                if (state != null && state.isDirectory() && recurseSubdir)
+                {
+                    Frame frame = openFrame(file, state.getLastModified());
+                    if (frame != null)
+                    {
+                        rotation.push(frame);
+                    }
+                    return;
+                }
+                Frame frame = rotation.peek();
+                unsettled = 0;
+                processEntry(file, state, reportImmediately, now, listener);
+                frame.unsettled += unsettled;
+            }
+        };
+        for (int count = 0; !rotation.isEmpty(); count++)
         {
-            if (file.isDirectory())
+            if (count >= budget || System.nanoTime() >= deadline)
+            {
+                return true;
+            }
+            Frame frame = rotation.peek();
+            boolean more;
+            try
+            {
+                more = frame.cursor.next(visitor);
+            }
+            catch (DirectoryIteratorException e)
+            {
+                frame.listed = false;
+                more = false;
+            }
+            if (!more)
             {
-                if (skipSubdir)
+                rotation.pop();
+                frame.cursor.close();
+                if (rotation.isEmpty() && !frame.listed)
                 {
-                    continue;
-                } 
-                else if (recurseSubdir)
+                    // The watched directory itself could not be listed, do not report anything as removed
+                    rotation = null;
+                    return false;
+                }
+                if (verifyInterval > 0)
                 {
-                    files.addAll(processFiles(reportImmediately, file.listFiles(filter)));
-                    continue;
+                    recordDirectory(frame.dir, frame.modified, frame.listed, frame.unsettled);
                 }
             }
-            long lastChecksum = lastChecksums.get(file) != null ? (Long) lastChecksums.get(file) : 0;
-            long storedChecksum = storedChecksums.get(file) != null ? (Long) storedChecksums.get(file) : 0;
-            long newChecksum = checksum(file);
-            lastChecksums.put(file, newChecksum);
-            // Only handle file when it does not change anymore and it has changed
-            // since last reported
-            if ((newChecksum == lastChecksum || reportImmediately) && newChecksum != storedChecksum)
+        }
+        rotation = null;
+        return true;
+    }
+
+    /**
+     * Start walking a directory, unless its modification time tells that its
+     * entries have not changed since it has been listed, in which case its
+     * files keep their checksum and only its known sub directories are
+     * walked.  The modification time of a directory only changes when an
+     * entry is added, removed or renamed, so a file modified in place is
+     * only seen by the next full verification.
+     *
+     * @return the frame, or <code>null</code> if the directory could not be listed
+     */
+    private Frame openFrame(File dir, long modified)
+    {
+        DirectoryCursor cursor;
+        if (isUnchanged(dir, modified))
+        {
+            table.markChildren(dir);
+            cursor = new SubdirectoryCursor(table.subdirectories(dir));
+        }
+        else
+        {
+            cursor = openDirectory(dir);
+        }
+        if (cursor == null)
+        {
+            if (verifyInterval > 0)
             {
-                storedChecksums.put(file, newChecksum);
-                files.add(file);
+                recordDirectory(dir, modified, false, 0);
             }
-            removed.remove(file);
+            return null;
         }
-        // Make sure we'll handle a file that has been deleted
-        files.addAll(removed);
-        for (File file : removed)
+        return new Frame(dir, modified, cursor);
+    }
+
+    private void closeRotation()
+    {
+        if (rotation != null)
         {
-            // Remove no longer used checksums
-            lastChecksums.remove(file);
-            storedChecksums.remove(file);
+            for (Frame frame : rotation)
+            {
+                frame.cursor.close();
+            }
+            rotation = null;
+        }
+    }
+
+    private boolean isUnchanged(File dir, long modified)
+    {
+        return verifyInterval > 0 && shortcut && modified != FileTable.UNKNOWN && modified == table.getDirectory(dir);
+    }
+
+    /**
+     * Record the modification time of a directory that has just been processed.
+     * A directory is listed again by the next scan if some of its files are
+     * still changing, as its modification time will not tell when they stop.
+     */
+    private void recordDirectory(File dir, long modified, boolean listed, int unsettled)
+    {
+        table.putDirectory(dir, listed && unsettled == 0 ? modified : FileTable.UNKNOWN);
+    }
+
+    /**
+     * Open a directory to read its entries accepted by the filter, along with
+     * their state.  Scanners may read the directory differently, as long as
+     * the cursor gives each entry to the visitor.  This method may be called
+     * from several threads at once when the tree is listed in parallel.
+     *
+     * @param dir the directory
+     * @return the cursor, or <code>null</code> if the directory could not be listed
+     */
+    DirectoryCursor openDirectory(File dir)
+    {
+        final File[] list = dir.listFiles(filter);
+        if (list == null)
+        {
+            return null;
+        }
+        return new DirectoryCursor()
+        {
+            private int index;
+
+            public boolean next(EntryVisitor visitor)
+            {
+                if (index >= list.length)
+                {
+                    return false;
+                }
+                File file = list[index++];
+                // A single access to the file system per entry
+                visitor.visit(file, FileState.read(file));
+                return true;
+            }
+
+            public void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Read all the entries of a directory and close the cursor.
+     *
+     * @param cursor the cursor, or <code>null</code> if the directory could not be listed
+     * @return <code>false</code> if the directory could not be listed
+     */
+    private static boolean readAll(DirectoryCursor cursor, EntryVisitor visitor)
+    {
+        if (cursor == null)
+        {
+            return false;
+        }
+        try
+        {
+            while (cursor.next(visitor))
+            {
+                // Next entry
+            }
+            return true;
+        }
+        catch (DirectoryIteratorException e)
+        {
+            return false;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Process the whole tree in recurse mode, listing sibling sub directories
+     * in parallel.  Only the listing is parallel: the entries are then processed
+     * on the calling thread, in the order a sequential scan would process them.
+     *
+     * @return <code>false</code> if the directory could not be listed
+     */
+    private boolean processTree(long modified, boolean reportImmediately, long now, ChangeListener listener)
+    {
+        if (pool == null)
+        {
+            pool = new ForkJoinPool(parallelism);
+        }
+        ListTask task = new ListTask(directory, modified, Thread.currentThread());
+        pool.invoke(task);
+        if (!task.listed || Thread.currentThread().isInterrupted())
+        {
+            // Files in the sub directories that have not been listed would be seen as removed
+            return false;
+        }
+        task.process(reportImmediately, now, listener);
+        return true;
+    }
+
+    /**
+     * Process a directory entry and its state, read while listing the directory.
+     *
+     * @param file the entry
+     * @param state the state of the entry, or <code>null</code> if it does not exist anymore
+     * @param reportImmediately report the file immediately
+     * @param now the time of the scan
+     * @param listener the listener receiving the changes
+     */
+    void processEntry(File file, FileState state, boolean reportImmediately, long now, ChangeListener listener)
+    {
+        if (state == null)
+        {
+            // Deleted since the directory has been listed
+            return;
+        }
+        if (state.isDirectory())
+        {
+            if (skipSubdir)
+            {
+                return;
+            }
+            else if (recurseSubdir)
+            {
+                // Walked by the caller
+                return;
+            }
+        }
+        // Mark the file as still present, files not marked are swept once the scan is done
+        long storedChecksum = table.mark(file);
+        if (!reportImmediately && !stability.isDue(file, now) && !deferred.containsKey(file))
+        {
+            // Still changing a short while ago, do not even compute its checksum
+            unsettled++;
+            return;
+        }
+        long newChecksum = checksumOf(file, state);
+        if (newChecksum == storedChecksum)
+        {
+            stability.remove(file);
+            deferred.remove(file);
+        }
+        // Only handle file when it does not change anymore and it has changed
+        // since last reported
+        else if (reportImmediately || isDeferred(file, newChecksum) || isStable(file, state, newChecksum, now))
+        {
+            reportChecksum(file, newChecksum);
+            table.mark(file);
+            stability.remove(file);
+            changed(listener, file, storedChecksum, newChecksum);
+        }
+        else
+        {
+            unsettled++;
+        }
+    }
+
+    /**
+     * Bound the work done by a single scan, so that a large tree is processed
+     * in slices over several scans.  A rotation over the whole tree is then
+     * done by successive scans, each resuming where the previous one stopped,
+     * and the files deleted are reported at the end of the rotation.  The sub
+     * directories are not listed in parallel while scanning in slices.
+     *
+     * @param sliceTime the longest time spent in a scan in milliseconds, 0 for no limit
+     * @param sliceEntries the largest number of entries processed by a scan, 0 for no limit
+     */
+    public void setSliceBudget(long sliceTime, int sliceEntries)
+    {
+        this.sliceTime = sliceTime;
+        this.sliceEntries = sliceEntries;
+    }
+
+    /**
+     * Set the number of threads listing the sub directories in recurse mode.
+     *
+     * @param parallelism the number of threads, 1 to list them on the calling thread
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Skip the directories whose modification time has not changed since they
+     * were last listed, so that an idle tree only costs a read of the
+     * attributes of each directory.  As files modified in place do not change
+     * the modification time of their directory, all the directories are
+     * still listed at the given interval.
+     *
+     * @param verifyInterval the time between two full scans in milliseconds, 0 to always list all directories
+     */
+    public void setVerifyInterval(long verifyInterval)
+    {
+        this.verifyInterval = verifyInterval;
+    }
+
+    /**
+     * Set the quiet windows used to decide when a changed file is stable.
+     *
+     * @param quiet the shortest time without change before a file is reported, in milliseconds
+     * @param maxQuiet the longest time between two checks of a growing file, in milliseconds
+     * @see StabilityTracker
+     */
+    public void setStability(long quiet, long maxQuiet)
+    {
+        this.stability = new StabilityTracker(quiet, maxQuiet);
+    }
+
+    /**
+     * Check that a file whose checksum differs from the reported one is
+     * stable, both through its attributes and, if enabled, its content.
+     */
+    boolean isStable(File file, FileState state, long checksum, long now)
+    {
+        if (!stability.observe(file, checksum, state, now))
+        {
+            return false;
+        }
+        if (!isContentStable(file, state, checksum))
+        {
+            // the content is still changing, wait for another quiet window
+            stability.restart(file, now);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enable the verification of the content of files.  When enabled, a file
+     * whose attributes are stable is only reported once the digest of its
+     * content is the same in two consecutive scans, so that a preallocated
+     * file or a file whose modification time is coarse is not reported while
+     * it is still being written.  The digest is then kept until the attributes
+     * of the file change again, and is available through {@link #getDigest(File)}.
+     * Directories are only checked through their attributes.
+     * <p>
+     * The content of a stable file is therefore read twice, a quiet window
+     * apart: a single digest can not tell that a file whose attributes do not
+     * move is still being filled.
+     *
+     * @param contentDigest <code>true</code> to check the content of files
+     */
+    public void setContentDigest(boolean contentDigest)
+    {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Check that the content of a file whose attributes are stable has not
+     * changed either since the previous check.
+     *
+     * @param file the file
+     * @param state the state of the file
+     * @param checksum the checksum of the attributes of the file
+     * @return <code>true</code> if the file can be reported
+     */
+    boolean isContentStable(File file, FileState state, long checksum)
+    {
+        if (!contentDigest || state == null || state.isDirectory())
+        {
+            return true;
+        }
+        Digest previous = digests.get(file);
+        if (previous != null && previous.checksum == checksum && previous.stable)
+        {
+            return true;
+        }
+        long digest;
+        try
+        {
+            digest = ContentDigest.digest(file);
+        }
+        catch (IOException e)
+        {
+            // Deleted or not readable yet, check again later
+            return false;
+        }
+        boolean stable = previous != null && previous.checksum == checksum && previous.digest == digest;
+        digests.put(file, new Digest(checksum, digest, stable));
+        return stable;
+    }
+
+    /**
+     * Retrieve the digest of the content of a reported file, computing it
+     * if it is not known for the current attributes of the file.
+     *
+     * @param file the file
+     * @return the digest, or 0 if the file can not be read
+     */
+    public long getDigest(File file)
+    {
+        long checksum = getChecksum(file);
+        Digest digest = digests.get(file);
+        if (digest != null && digest.checksum == checksum)
+        {
+            return digest.digest;
+        }
+        try
+        {
+            long value = ContentDigest.digest(file);
+            digests.put(file, new Digest(checksum, value, false));
+            return value;
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Compute the time after which the next scan may report changes.
+     * The polling scanner can only find new changes by scanning again after
+     * the given timeout, but a pending file may become stable earlier.
+     *
+     * @param timeout the poll interval in milliseconds
+     * @return the delay in milliseconds, or -1 if only a file system
+     *         notification can bring new changes
+     */
+    public long nextScanDelay(long timeout)
+    {
+        if (rotation != null)
+        {
+            // Resume the rotation at once
+            return 0;
+        }
+        long due = stability.nextDue();
+        if (due == Long.MAX_VALUE)
+        {
+            return timeout;
+        }
+        return Math.max(0, Math.min(timeout, due - System.currentTimeMillis()));
+    }
+
+    /**
+     * Wait until changes may be available in the directory.
+     * The polling scanner is never notified of changes, so it simply
+     * waits for the given timeout, or until a pending file may be stable.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await(long timeout) throws InterruptedException
+    {
+        long delay = nextScanDelay(timeout);
+        if (delay > 0)
+        {
+            Thread.sleep(delay);
         }
-        return files;
     }
 
     @Override
     public void close() throws IOException {
-    	
+        closeRotation();
+        if (pool != null)
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
     }
 
     private static File canon(File file)
@@ -169,8 +856,7 @@ public class Scanner implements Closeable {
      */
     public long getChecksum(File file)
     {
-        Long c = storedChecksums.get(file);
-        return c != null ? c : 0;
+        return table.getChecksum(file);
     }
 
     /**
@@ -178,13 +864,27 @@ public class Scanner implements Closeable {
       */
     public void updateChecksum(File file)
     {
-        if (file != null && storedChecksums.containsKey(file))
+        if (file != null && table.hasChecksum(file))
         {
-            long newChecksum = checksum(file);
-            storedChecksums.put(file, newChecksum);
+            long newChecksum = checksumOf(file, FileState.read(file));
+            storeChecksum(file, newChecksum);
         }
     }
 
+    /**
+     * Compute the checksum of a file or directory as used by this scanner.
+     * Scanners knowing more about the directory tree may compute the
+     * checksum of directories without walking them.
+     *
+     * @param file the file or directory
+     * @param state the state of the file, or <code>null</code> if it does not exist
+     * @return a checksum identifying any change
+     */
+    long checksumOf(File file, FileState state)
+    {
+        return checksum(file, state);
+    }
+
     /**
      * Compute a cheksum for the file or directory that consists of the name, length and the last modified date
      * for a file and its children in case of a directory
@@ -193,34 +893,57 @@ public class Scanner implements Closeable {
      * @return a checksum identifying any change
      */
     static long checksum(File file)
+    {
+        return checksum(file, FileState.read(file));
+    }
+
+    /**
+     * Compute the checksum of a file or directory from its already known state,
+     * so that a regular file does not need any further access to the file system.
+     * The file key is included when available, so that a file replaced by another
+     * one with the same size and date is still detected.
+     *
+     * @param file the file or directory
+     * @param state the state of the file, or <code>null</code> if it does not exist
+     * @return a checksum identifying any change
+     */
+    static long checksum(File file, FileState state)
     {
         CRC32 crc = new CRC32();
-        checksum(file, crc);
+        checksum(file, state, crc);
         return crc.getValue();
     }
 
-    private static void checksum(File file, CRC32 crc)
+    private static void checksum(File file, FileState state, CRC32 crc)
     {
         crc.update(file.getName().getBytes());
-        if (file.isFile())
+        if (state == null)
         {
-            checksum(file.lastModified(), crc);
-            checksum(file.length(), crc);
+            return;
         }
-        else if (file.isDirectory())
+        if (state.isDirectory())
         {
             File[] children = file.listFiles();
             if (children != null)
             {
                 for (File aChildren : children)
                 {
-                    checksum(aChildren, crc);
+                    checksum(aChildren, FileState.read(aChildren), crc);
                 }
             }
         }
+        else
+        {
+            checksum(state.getLastModified(), crc);
+            checksum(state.getLength(), crc);
+            if (state.getFileKey() != null)
+            {
+                checksum(state.getFileKey().hashCode(), crc);
+            }
+        }
     }
 
-    private static void checksum(long l, CRC32 crc)
+    static void checksum(long l, CRC32 crc)
     {
         for (int i = 0; i < 8; i++)
         {
@@ -229,4 +952,187 @@ public class Scanner implements Closeable {
         }
     }
 
+    /**
+     * Receives the entries of a directory while it is listed.
+     */
+    interface EntryVisitor
+    {
+        void visit(File file, FileState state);
+    }
+
+    /**
+     * Reads the entries of a directory one at a time, so that a directory can
+     * be read over several scans.
+     */
+    interface DirectoryCursor
+    {
+        /**
+         * Give the next entry to the visitor.
+         *
+         * @return <code>false</code> if there is no entry left
+         * @throws DirectoryIteratorException if the directory can not be read anymore
+         */
+        boolean next(EntryVisitor visitor);
+
+        void close();
+    }
+
+    /**
+     * Gives the known sub directories of an unchanged directory.
+     */
+    private static class SubdirectoryCursor implements DirectoryCursor
+    {
+
+        private final List<File> subdirs;
+        private int index;
+
+        SubdirectoryCursor(List<File> subdirs)
+        {
+            this.subdirs = subdirs;
+        }
+
+        public boolean next(EntryVisitor visitor)
+        {
+            while (index < subdirs.size())
+            {
+                File subdir = subdirs.get(index++);
+                FileState state = FileState.read(subdir);
+                if (state != null && state.isDirectory())
+                {
+                    visitor.visit(subdir, state);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * A directory being walked by a rotation.
+     */
+    private static class Frame
+    {
+        final File dir;
+        final long modified;
+        final DirectoryCursor cursor;
+        boolean listed = true;
+        // Number of changed files not reported yet in this directory
+        int unsettled;
+
+        Frame(File dir, long modified, DirectoryCursor cursor)
+        {
+            this.dir = dir;
+            this.modified = modified;
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * Lists a directory, forking one task per sub directory.  The entries and
+     * the sub tasks are kept in listing order, so that they can be processed
+     * in the order of a depth first walk.  An unchanged directory is not
+     * listed, only its known sub directories are visited.
+     */
+    private class ListTask extends RecursiveAction
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final long modified;
+        private final Thread caller;
+        private final List<File> entries = new ArrayList<File>();
+        private final List<FileState> states = new ArrayList<FileState>();
+        // Sub tasks, at the position of their directory in the entries
+        private final List<ListTask> subtasks = new ArrayList<ListTask>();
+        boolean listed;
+        boolean unchanged;
+
+        ListTask(File dir, long modified, Thread caller)
+        {
+            this.dir = dir;
+            this.modified = modified;
+            this.caller = caller;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (caller.isInterrupted())
+            {
+                return;
+            }
+            EntryVisitor visitor = new EntryVisitor()
+            {
+                public void visit(File file, FileState state)
+                {
+                    entries.add(file);
+                    states.add(state);
+                    subtasks.add(state != null && state.isDirectory()
+                            ? new ListTask(file, state.getLastModified(), caller) : null);
+                }
+            };
+            unchanged = isUnchanged(dir, modified);
+            listed = readAll(unchanged ? new SubdirectoryCursor(table.subdirectories(dir)) : openDirectory(dir), visitor);
+            List<ListTask> forked = new ArrayList<ListTask>();
+            for (ListTask subtask : subtasks)
+            {
+                if (subtask != null)
+                {
+                    forked.add(subtask);
+                }
+            }
+            invokeAll(forked);
+        }
+
+        void process(boolean reportImmediately, long now, ChangeListener listener)
+        {
+            if (unchanged)
+            {
+                table.markChildren(dir);
+            }
+            int saved = unsettled;
+            unsettled = 0;
+            for (int i = 0; i < entries.size(); i++)
+            {
+                if (subtasks.get(i) != null)
+                {
+                    subtasks.get(i).process(reportImmediately, now, listener);
+                }
+                else
+                {
+                    processEntry(entries.get(i), states.get(i), reportImmediately, now, listener);
+                }
+            }
+            if (verifyInterval > 0)
+            {
+                recordDirectory(dir, modified, listed, unsettled);
+            }
+            unsettled = saved;
+        }
+    }
+
+    /**
+     * The digest of the content of a file.
+     */
+    static final class Digest
+    {
+        // The checksum of the attributes when the digest has been computed
+        final long checksum;
+        final long digest;
+        // Whether the same digest has been seen twice for these attributes
+        final boolean stable;
+
+        Digest(long checksum, long digest, boolean stable)
+        {
+            this.checksum = checksum;
+            this.digest = digest;
+            this.stable = stable;
+        }
+    }
+
 }
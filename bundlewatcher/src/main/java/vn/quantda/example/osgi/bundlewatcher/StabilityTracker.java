@@ -0,0 +1,214 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decide when a changed file is stable enough to be reported.
+ * <p>
+ * A file is stable when it has not changed during a quiet window, which
+ * starts when the tracker first sees the file, or sees it changed.  The
+ * modification time alone is not trusted for that, as a copy may keep the
+ * time of the source while it is still being written.  It is trusted once
+ * it is older than the quiet window and the length of the file has not
+ * changed since the previous check: a file written quickly is checked again
+ * as soon as its modification time is old enough, and reported if it has not
+ * moved in between.  A file found grown with a time older than the previous
+ * check has its time set by the writer, and is only judged by observation.
+ * Each time a file is found growing again (or a directory is found changing),
+ * its quiet window is doubled, up to a maximum, and the file is not checked
+ * again before the end of that window, so a large file slowly uploaded is not
+ * checked at every scan.
+ * <p>
+ * Only files whose checksum differs from the reported one are tracked.
+ * This class is not thread safe, it is only used by the scanning thread.
+ */
+public final class StabilityTracker
+{
+
+    public static final long DEFAULT_QUIET = 1000;
+    public static final long DEFAULT_MAX_QUIET = 4000;
+
+    private final Map<File, Entry> entries = new HashMap<File, Entry>();
+    private long quiet;
+    private long maxQuiet;
+
+    public StabilityTracker()
+    {
+        this(DEFAULT_QUIET, DEFAULT_MAX_QUIET);
+    }
+
+    /**
+     * Create a tracker.
+     *
+     * @param quiet the shortest time without change before a file is stable, in milliseconds
+     * @param maxQuiet the longest quiet window for a growing file, in milliseconds
+     */
+    public StabilityTracker(long quiet, long maxQuiet)
+    {
+        this.quiet = Math.max(0, quiet);
+        this.maxQuiet = Math.max(this.quiet, maxQuiet);
+    }
+
+    /**
+     * Check whether a file must be checked at the given time.  A file that is
+     * not tracked is always due.
+     *
+     * @param file the file
+     * @param now the current time
+     * @return <code>false</code> if the file is known to be within its quiet window
+     */
+    public boolean isDue(File file, long now)
+    {
+        Entry entry = entries.get(file);
+        return entry == null || now >= entry.due;
+    }
+
+    /**
+     * Retrieve the time at which a file should be checked again.
+     *
+     * @param file the file
+     * @param now the current time, returned for a file that is not tracked
+     * @return the time of the next check
+     */
+    public long getDue(File file, long now)
+    {
+        Entry entry = entries.get(file);
+        return entry != null ? entry.due : now;
+    }
+
+    /**
+     * Retrieve the earliest time at which a tracked file should be checked again.
+     *
+     * @return the time, or <code>Long.MAX_VALUE</code> if no file is tracked
+     */
+    public long nextDue()
+    {
+        long next = Long.MAX_VALUE;
+        for (Entry entry : entries.values())
+        {
+            next = Math.min(next, entry.due);
+        }
+        return next;
+    }
+
+    /**
+     * Record the observation of a file whose checksum differs from the
+     * reported one.
+     *
+     * @param file the file
+     * @param checksum the checksum of the file
+     * @param state the state of the file
+     * @param now the current time
+     * @return <code>true</code> if the file has not changed during its quiet window
+     */
+    public boolean observe(File file, long checksum, FileState state, long now)
+    {
+        Entry entry = entries.get(file);
+        if (entry == null)
+        {
+            entry = new Entry(checksum, state);
+            entry.due = due(entry, state, now);
+            entry.seen = now;
+            entries.put(file, entry);
+            // the modification time is only trusted once the next check confirms the length
+            return quiet == 0;
+        }
+        if (state.getLength() != entry.length && state.getLastModified() < entry.seen)
+        {
+            // written since the previous check but dated before it, the time is set by the writer
+            entry.trusted = false;
+        }
+        boolean settled = entry.trusted && state.getLength() == entry.length
+                && state.getLastModified() <= now - quiet;
+        if (entry.checksum != checksum)
+        {
+            if (state.isDirectory() || state.getLength() > entry.length)
+            {
+                entry.growth++;
+            }
+            entry.checksum = checksum;
+            entry.length = state.getLength();
+            // a file created empty and written right after has only grown once
+            entry.due = entry.growth > 1 ? now + window(entry.growth) : due(entry, state, now);
+        }
+        entry.seen = now;
+        return settled || now >= entry.due;
+    }
+
+    /**
+     * Restart the quiet window of a file that has been found changing by
+     * other means, such as its content.
+     *
+     * @param file the file
+     * @param now the current time
+     */
+    public void restart(File file, long now)
+    {
+        Entry entry = entries.get(file);
+        if (entry != null)
+        {
+            entry.growth++;
+            entry.due = now + window(entry.growth);
+        }
+    }
+
+    /**
+     * Stop tracking a file, once it has been reported, or when it has been
+     * removed or is back to its reported state.
+     */
+    public void remove(File file)
+    {
+        entries.remove(file);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * The time of the next check of a file that is not growing: at the end of
+     * the quiet window, or as soon as its modification time is older than the
+     * quiet window if it can be trusted.
+     */
+    private long due(Entry entry, FileState state, long now)
+    {
+        long due = now + quiet;
+        if (entry.trusted)
+        {
+            due = Math.min(due, Math.max(now, state.getLastModified() + quiet));
+        }
+        return due;
+    }
+
+    private long window(int growth)
+    {
+        // a file seen growing once has most likely just been written, back off from the second time
+        long window = quiet << Math.min(Math.max(0, growth - 1), 20);
+        return window < 0 || window > maxQuiet ? maxQuiet : window;
+    }
+
+    private static class Entry
+    {
+        long checksum;
+        long length;
+        // Number of times the file has been found growing
+        int growth;
+        // Time at which the file can be considered stable if it does not change
+        long due;
+        // Time of the previous check
+        long seen;
+        // Whether the modification time follows the writes, never for a directory
+        boolean trusted;
+
+        Entry(long checksum, FileState state)
+        {
+            this.checksum = checksum;
+            this.length = state.getLength();
+            this.trusted = !state.isDirectory();
+        }
+    }
+
+}
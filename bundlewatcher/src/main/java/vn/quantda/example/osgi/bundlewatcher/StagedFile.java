@@ -0,0 +1,155 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A snapshot of a stable file, taken in a staging directory so that the
+ * file can be uploaded while the watched directory is written again.
+ * <p>
+ * The snapshot is a hard link when the staging directory is on the same
+ * file system, which costs no copy at all: replacing or deleting the watched
+ * file then leaves the snapshot untouched, but writing the watched file in
+ * place would change it too, which {@link #verify()} detects.  Otherwise,
+ * the content is copied with {@link FileChannel#transferTo}, letting the
+ * kernel move the bytes.  Closing the snapshot deletes it.
+ */
+public final class StagedFile implements Closeable
+{
+
+    // Makes the names of the snapshots unique within the staging directory
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private final File source;
+    private final File file;
+    private final boolean linked;
+    private final long size;
+    private final long lastModified;
+
+    private StagedFile(File source, File file, boolean linked)
+    {
+        this.source = source;
+        this.file = file;
+        this.linked = linked;
+        this.size = file.length();
+        this.lastModified = file.lastModified();
+    }
+
+    /**
+     * Take a snapshot of a file.
+     *
+     * @param source the file
+     * @param dir the staging directory
+     * @return the snapshot, to be closed once used
+     * @throws IOException if the file can neither be linked nor copied,
+     *                     or has been truncated while copied
+     */
+    public static StagedFile stage(File source, File dir) throws IOException
+    {
+        Files.createDirectories(dir.toPath());
+        Path target = new File(dir, COUNTER.incrementAndGet() + "-" + source.getName()).toPath();
+        try
+        {
+            Files.createLink(target, source.toPath());
+            return new StagedFile(source, target.toFile(), true);
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            // another file system, or no hard links there
+        }
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            long size = in.size();
+            long position = 0;
+            while (position < size)
+            {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0)
+                {
+                    break;
+                }
+                position += n;
+            }
+            if (position < size)
+            {
+                throw new IOException(source + " has been truncated while staged");
+            }
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return new StagedFile(source, target.toFile(), false);
+    }
+
+    /**
+     * @return the snapshot
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return <code>true</code> if the snapshot is a hard link to the file
+     */
+    public boolean isLinked()
+    {
+        return linked;
+    }
+
+    /**
+     * Check that the snapshot has not been modified since it was taken.
+     *
+     * @throws IOException if the file has been written in place since
+     */
+    public void verify() throws IOException
+    {
+        if (file.length() != size || file.lastModified() != lastModified)
+        {
+            throw new IOException(source + " has been modified while staged");
+        }
+    }
+
+    /**
+     * Delete the snapshot.
+     */
+    public void close() throws IOException
+    {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Delete the snapshots left in a staging directory, by a crash for instance.
+     *
+     * @param dir the staging directory
+     */
+    public static void purge(File dir)
+    {
+        if (!dir.isDirectory())
+        {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath()))
+        {
+            for (Path path : stream)
+            {
+                Files.deleteIfExists(path);
+            }
+        }
+        catch (IOException e)
+        {
+            // Ignore
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * A polling scanner reading the names and the attributes of the entries of
+ * a directory in a single pass over a {@link DirectoryStream}.
+ * <p>
+ * The names are filtered while the directory is read, before any file is
+ * created for them.  When the platform provides a {@link SecureDirectoryStream},
+ * the attributes of an entry are read relative to the open directory, so the
+ * file system does not resolve the whole path of each entry again; on
+ * platforms where the directory listing already returns the attributes of
+ * the entries, they are used as is, without any further call.  The
+ * checksums are the same as the ones of {@link Scanner}, so both scanners
+ * can be used with the same stored checksums.
+ */
+public class StreamScanner extends Scanner
+{
+
+    private final DirectoryStream.Filter<Path> streamFilter;
+
+    /**
+     * Create a scanner for the specified directory and file filter
+     *
+     * @param directory the directory to scan
+     * @param filterString a filter for file names
+     * @param subdirMode to use when scanning
+     */
+    public StreamScanner(File directory, String filterString, String subdirMode)
+    {
+        super(directory, filterString, subdirMode);
+        final FilterMatcher matcher = FilterMatcher.compile(filterString);
+        this.streamFilter = new DirectoryStream.Filter<Path>()
+        {
+            public boolean accept(Path entry)
+            {
+                return matcher == null || matcher.matches(entry.getFileName().toString());
+            }
+        };
+    }
+
+    @Override
+    DirectoryCursor openDirectory(File dir)
+    {
+        final DirectoryStream<Path> stream;
+        try
+        {
+            stream = Files.newDirectoryStream(dir.toPath(), streamFilter);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        final Iterator<Path> iterator = stream.iterator();
+        return new DirectoryCursor()
+        {
+            public boolean next(EntryVisitor visitor)
+            {
+                if (!iterator.hasNext())
+                {
+                    return false;
+                }
+                Path path = iterator.next();
+                BasicFileAttributes attrs = readAttributes(stream, path);
+                visitor.visit(path.toFile(), attrs != null ? FileState.of(attrs) : null);
+                return true;
+            }
+
+            public void close()
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch (IOException e)
+                {
+                    // Ignore
+                }
+            }
+        };
+    }
+
+    @Override
+    long checksumOf(File file, FileState state)
+    {
+        if (state == null || !state.isDirectory())
+        {
+            return super.checksumOf(file, state);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(file.getName().getBytes());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.toPath()))
+        {
+            checksum(stream, crc);
+        }
+        catch (IOException | DirectoryIteratorException e)
+        {
+            // Ignore
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Add the entries of a directory to a checksum, in the same way as
+     * {@link Scanner#checksum(File, FileState)}.
+     */
+    private void checksum(DirectoryStream<Path> stream, CRC32 crc)
+    {
+        for (Path path : stream)
+        {
+            crc.update(path.getFileName().toString().getBytes());
+            BasicFileAttributes attrs = readAttributes(stream, path);
+            if (attrs == null)
+            {
+                continue;
+            }
+            if (attrs.isDirectory())
+            {
+                try (DirectoryStream<Path> children = open(stream, path))
+                {
+                    checksum(children, crc);
+                }
+                catch (IOException | DirectoryIteratorException e)
+                {
+                    // Ignore
+                }
+            }
+            else
+            {
+                checksum(attrs.lastModifiedTime().toMillis(), crc);
+                checksum(attrs.size(), crc);
+                if (attrs.fileKey() != null)
+                {
+                    checksum(attrs.fileKey().hashCode(), crc);
+                }
+            }
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(DirectoryStream<Path> stream, Path path)
+    {
+        try
+        {
+            if (stream instanceof SecureDirectoryStream)
+            {
+                return ((SecureDirectoryStream<Path>) stream)
+                        .getFileAttributeView(path.getFileName(), BasicFileAttributeView.class)
+                        .readAttributes();
+            }
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e)
+        {
+            // Deleted since the directory has been listed
+            return null;
+        }
+    }
+
+    private static DirectoryStream<Path> open(DirectoryStream<Path> stream, Path dir) throws IOException
+    {
+        if (stream instanceof SecureDirectoryStream)
+        {
+            return ((SecureDirectoryStream<Path>) stream).newDirectoryStream(dir.getFileName());
+        }
+        return Files.newDirectoryStream(dir);
+    }
+
+}
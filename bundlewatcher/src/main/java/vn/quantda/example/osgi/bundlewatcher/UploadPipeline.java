@@ -0,0 +1,356 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads the files reported by a scanner on an executor shared with the
+ * other pipelines, so that the watcher goes back to watching as soon as a
+ * file has been submitted.
+ * <p>
+ * A file already waiting is not added twice, and a file submitted again
+ * while it is uploaded is uploaded once more after the current upload,
+ * however many times it was submitted meanwhile.  At most a given number of
+ * files are uploaded at once by a pipeline, the other ones wait their turn,
+ * and at most a given number of files may wait: when the uploads fall
+ * behind, {@link #submit(File)} blocks the scanner until there is room
+ * again, while {@link #offer(File)} refuses the file, for a scanner that
+ * must not be blocked.  A failed upload is retried a few times,
+ * waiting twice as long before each new attempt, without holding a thread
+ * of the executor meanwhile.
+ * <p>
+ * In batch mode, the files are instead handed over together to a
+ * {@link BatchUploader}, one batch at a time: a batch holds the files
+ * submitted before a call to {@link #flush()}, usually one scan cycle, or
+ * the files submitted within a time window after the first one.  A batch is
+ * handed over early once as many files as allowed are waiting.
+ */
+public class UploadPipeline implements Closeable {
+
+    /**
+     * Performs the upload of a single file.
+     */
+    public interface Uploader {
+
+        /**
+         * Upload a file.
+         *
+         * @param file the file to upload
+         * @throws Exception if the upload failed and should be retried
+         */
+        void upload(File file) throws Exception;
+
+    }
+
+    /**
+     * Performs the upload of several files at once.
+     */
+    public interface BatchUploader extends Uploader {
+
+        /**
+         * Upload a batch of files.
+         *
+         * @param files the files to upload, in the order they were submitted
+         * @throws Exception if the upload failed and the whole batch should be retried
+         */
+        void upload(List<File> files) throws Exception;
+
+    }
+
+    private final Logger LOG = LoggerFactory.getLogger(UploadPipeline.class);
+
+    private final String name;
+    private final Uploader uploader;
+    private final ScheduledExecutorService executor;
+    private final int concurrency;
+    private final int capacity;
+    private final int retries;
+    private final long backoff;
+    // files waiting to be uploaded, in the order they were submitted
+    private final Set<File> pending = new LinkedHashSet<File>();
+    // files being uploaded, or waiting for a new attempt
+    private final Set<File> uploading = new HashSet<File>();
+    // attempts waiting for their backoff delay
+    private final Set<Attempt> delayed = new HashSet<Attempt>();
+    private int active;
+    private boolean closed;
+    // batch mode settings
+    private long batchWindow;
+    private int batchSize;
+    private boolean batching;
+    // whether the pending files have been flushed or their window has ended, and the end of the current window
+    private boolean ready;
+    private ScheduledFuture<?> window;
+
+    /**
+     * Create a pipeline.
+     *
+     * @param name a name for the pipeline in the logs
+     * @param uploader performs the uploads
+     * @param executor runs the uploads, shared with other pipelines
+     * @param concurrency the number of files uploaded at once by this pipeline
+     * @param capacity the number of files that can wait to be uploaded
+     * @param retries the number of attempts after a failed upload
+     * @param backoff the delay before the first new attempt, in milliseconds
+     */
+    public UploadPipeline(String name, Uploader uploader, ScheduledExecutorService executor,
+                          int concurrency, int capacity, int retries, long backoff) {
+        this.name = name;
+        this.uploader = uploader;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+        this.capacity = Math.max(1, capacity);
+        this.retries = Math.max(0, retries);
+        this.backoff = Math.max(0, backoff);
+    }
+
+    /**
+     * Hand the files over in batches to the uploader, which must be a
+     * {@link BatchUploader}.  Must be called before submitting files.
+     *
+     * @param window how long to collect files after the first one of a batch, in milliseconds,
+     *               or <code>0</code> to collect them until the next {@link #flush()}
+     * @param size the maximum number of files in a batch, or <code>0</code> for no limit
+     */
+    public synchronized void setBatching(long window, int size) {
+        if (!(uploader instanceof BatchUploader)) {
+            throw new IllegalStateException("The uploader of " + name + " does not upload batches");
+        }
+        this.batching = true;
+        this.batchWindow = Math.max(0, window);
+        this.batchSize = size > 0 ? size : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Submit a file to be uploaded, waiting for room among the waiting files
+     * if needed.  A file already waiting is accepted at once.
+     *
+     * @param file the file to upload
+     * @return <code>false</code> if the pipeline has been closed, or the calling
+     *         thread interrupted, before the file could be accepted
+     */
+    public synchronized boolean submit(File file) {
+        while (!closed && isFull() && !pending.contains(file)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return offer(file);
+    }
+
+    /**
+     * Submit a file to be uploaded if there is room among the waiting files.
+     * Never blocks.
+     *
+     * @param file the file to upload
+     * @return <code>false</code> if the file has not been accepted
+     */
+    public synchronized boolean offer(File file) {
+        if (closed || isFull() && !pending.contains(file)) {
+            return false;
+        }
+        pending.add(file);
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Check whether as many files as allowed are waiting to be uploaded.
+     */
+    public synchronized boolean isFull() {
+        return pending.size() >= capacity;
+    }
+
+    /**
+     * Hand the files submitted so far over as a batch.  Does nothing unless
+     * batches are collected until the next flush.
+     */
+    public synchronized void flush() {
+        if (batching && batchWindow == 0 && !pending.isEmpty()) {
+            ready = true;
+            dispatch();
+        }
+    }
+
+    /**
+     * Forget a file waiting to be uploaded, usually because it has been deleted.
+     */
+    public synchronized void cancel(File file) {
+        if (pending.remove(file)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop uploading: the waiting files and new attempts are dropped, and the
+     * uploads in progress are waited for.
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        // wake up the scanner waiting for room
+        notifyAll();
+        if (window != null) {
+            window.cancel(false);
+            window = null;
+        }
+        for (Attempt attempt : new ArrayList<Attempt>(delayed)) {
+            if (attempt.future.cancel(false)) {
+                delayed.remove(attempt);
+                complete(attempt.files);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (active > 0) {
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+                LOG.warn("Still uploading " + uploading.size() + " files of " + name + " after 10 seconds");
+                break;
+            }
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Start uploading the waiting files, as far as the concurrency allows.
+     */
+    private void dispatch() {
+        if (closed) {
+            return;
+        }
+        if (batching) {
+            if (active > 0 || pending.isEmpty()) {
+                return;
+            }
+            if (!ready && pending.size() < batchSize && !isFull()) {
+                if (batchWindow > 0 && window == null) {
+                    window = executor.schedule(new Runnable() {
+                        public void run() {
+                            synchronized (UploadPipeline.this) {
+                                window = null;
+                                ready = true;
+                                dispatch();
+                            }
+                        }
+                    }, batchWindow, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            List<File> batch = new ArrayList<File>();
+            for (Iterator<File> it = pending.iterator(); it.hasNext() && batch.size() < batchSize; ) {
+                batch.add(it.next());
+                it.remove();
+            }
+            // files left over by the size limit are part of the same flush or window
+            ready = ready && !pending.isEmpty();
+            start(batch);
+            notifyAll();
+            return;
+        }
+        boolean started = false;
+        for (Iterator<File> it = pending.iterator(); it.hasNext() && active < concurrency; ) {
+            File file = it.next();
+            if (uploading.contains(file)) {
+                // uploaded again once the current upload completes
+                continue;
+            }
+            it.remove();
+            start(Collections.singletonList(file));
+            started = true;
+        }
+        if (started) {
+            notifyAll();
+        }
+    }
+
+    private void start(List<File> files) {
+        uploading.addAll(files);
+        active++;
+        try {
+            executor.execute(new Attempt(files));
+        } catch (RejectedExecutionException e) {
+            // the executor is shut down
+            uploading.removeAll(files);
+            active--;
+        }
+    }
+
+    private synchronized void complete(List<File> files) {
+        uploading.removeAll(files);
+        active--;
+        notifyAll();
+        dispatch();
+    }
+
+    /**
+     * An attempt to upload a file, or a batch of files.
+     */
+    private class Attempt implements Runnable {
+
+        private final List<File> files;
+        private int attempt;
+        private long delay = backoff;
+        private ScheduledFuture<?> future;
+
+        Attempt(List<File> files) {
+            this.files = files;
+        }
+
+        public void run() {
+            synchronized (UploadPipeline.this) {
+                delayed.remove(this);
+            }
+            try {
+                if (batching) {
+                    ((BatchUploader) uploader).upload(files);
+                } else {
+                    uploader.upload(files.get(0));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                String what = batching ? "a batch of " + files.size() + " files" : files.get(0).toString();
+                synchronized (UploadPipeline.this) {
+                    if (attempt < retries && !closed) {
+                        LOG.info("Unable to upload " + what + ", trying again in " + delay + " ms: " + e);
+                        attempt++;
+                        try {
+                            future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                            delayed.add(this);
+                            delay *= 2;
+                            return;
+                        } catch (RejectedExecutionException e2) {
+                            // the executor is shut down
+                        }
+                    }
+                }
+                LOG.warn("Unable to upload " + what + " after " + (attempt + 1) + " attempts", e);
+            }
+            complete(files);
+        }
+
+    }
+
+}
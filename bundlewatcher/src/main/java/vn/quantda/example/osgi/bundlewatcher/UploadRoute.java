@@ -0,0 +1,122 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.karaf.cave.server.api.CaveRepository;
+import org.apache.karaf.cave.server.api.CaveRepositoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A rule sending the jars whose file name or Bundle-SymbolicName match to
+ * a Cave repository, through its own {@link UploadPipeline}.
+ * <p>
+ * The repository is looked up by name once and then kept, until the
+ * {@link CaveRepositoryService} changes.  A route without any rule matches
+ * all the jars, and a route without a repository name uses the first
+ * repository of the service.
+ */
+public class UploadRoute {
+
+    private final Logger LOG = LoggerFactory.getLogger(UploadRoute.class);
+
+    private final String name;
+    private final String repositoryName;
+    private final FilterMatcher filter;
+    private final String symbolicName;
+    UploadPipeline pipeline;
+
+    private volatile CaveRepositoryService service;
+    private volatile CaveRepository repository;
+
+    /**
+     * Create a route.
+     *
+     * @param name the name of the route
+     * @param repositoryName the name of the Cave repository, or <code>null</code> for the first one
+     * @param filter a regular expression the file name must match, or <code>null</code>
+     * @param symbolicName a prefix the Bundle-SymbolicName must start with, or <code>null</code>
+     */
+    public UploadRoute(String name, String repositoryName, String filter, String symbolicName) {
+        this.name = name;
+        this.repositoryName = repositoryName;
+        this.filter = FilterMatcher.compile(filter);
+        this.symbolicName = symbolicName != null && symbolicName.length() > 0 ? symbolicName : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether the Bundle-SymbolicName of a jar is needed to match it.
+     */
+    public boolean needsSymbolicName() {
+        return symbolicName != null;
+    }
+
+    /**
+     * Check whether a jar goes through this route.
+     *
+     * @param file the jar
+     * @param bsn the Bundle-SymbolicName of the jar, if needed and known
+     * @return <code>true</code> if the jar matches all the rules of the route
+     */
+    public boolean matches(File file, String bsn) {
+        if (filter != null && !filter.matches(file.getName())) {
+            return false;
+        }
+        return symbolicName == null || bsn != null && bsn.startsWith(symbolicName);
+    }
+
+    /**
+     * Forget the repository, which is looked up in the given service on next use.
+     *
+     * @param service the Cave repository service, may be <code>null</code>
+     */
+    public void setCaveRepoService(CaveRepositoryService service) {
+        this.service = service;
+        this.repository = null;
+    }
+
+    /**
+     * Retrieve the repository of the route.
+     *
+     * @return the repository, or <code>null</code> if Cave or the repository is not available
+     */
+    public CaveRepository getRepository() {
+        CaveRepository repository = this.repository;
+        CaveRepositoryService service = this.service;
+        if (repository == null && service != null) {
+            if (repositoryName != null) {
+                repository = service.getRepository(repositoryName);
+            } else {
+                CaveRepository[] repositories = service.getRepositories();
+                repository = repositories != null && repositories.length > 0 ? repositories[0] : null;
+            }
+            if (repository == null) {
+                LOG.warn("Cave repository " + (repositoryName != null ? repositoryName : "") + " of route " + name + " is not available");
+            } else if (this.service == service) {
+                this.repository = repository;
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * Read the Bundle-SymbolicName of a jar, without its directives.
+     *
+     * @param file the jar
+     * @return the symbolic name, or <code>null</code> if the file is not a bundle
+     */
+    static String getSymbolicName(File file) {
+        try {
+            BundleManifest bundle = BundleManifest.read(file);
+            return bundle != null ? bundle.getSymbolicName() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single {@link WatchService} shared by all the watched directories.
+ * One thread takes the signalled keys and routes each of them to the
+ * {@link Watcher} that registered it, then the directory processing is
+ * run on a small pool of worker threads.  The number of threads does not
+ * depend on the number of watched directories.
+ */
+public class WatchDispatcher implements Closeable, Runnable {
+
+    private final Logger LOG = LoggerFactory.getLogger(WatchDispatcher.class);
+
+    private final WatchService watchService;
+    private final ScheduledExecutorService executor;
+    private final Thread thread;
+    private final Map<WatchKey, Watcher> owners = new ConcurrentHashMap<WatchKey, Watcher>();
+    private final Map<Watcher, Registration> registrations = new ConcurrentHashMap<Watcher, Registration>();
+    // keys signalled before their owner had a chance to bind them
+    private final Set<WatchKey> orphans = new HashSet<WatchKey>();
+    private volatile boolean closed;
+
+    public WatchDispatcher(int threads) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bundlewatcher-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.thread = new Thread(this, "bundlewatcher-dispatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public WatchService getWatchService() {
+        return watchService;
+    }
+
+    /**
+     * Register a directory processing task on the shared pool.
+     * The task is not run until the registration is started, so that the
+     * caller can keep the registration first.  It is then run every time
+     * events are dispatched to the given watcher or the task asks to be
+     * scheduled again.  A task is never run concurrently with itself.
+     *
+     * @param task the processing task
+     * @param watcher the watcher whose events trigger the task, may be <code>null</code>
+     * @return the registration used to start, reschedule or cancel the task
+     */
+    public Registration register(Runnable task, Watcher watcher) {
+        Registration registration = new Registration(task, watcher);
+        if (watcher != null) {
+            registrations.put(watcher, registration);
+        }
+        return registration;
+    }
+
+    synchronized void bind(WatchKey key, Watcher watcher) {
+        owners.put(key, watcher);
+        if (orphans.remove(key)) {
+            route(key);
+        }
+    }
+
+    synchronized void unbind(WatchKey key) {
+        owners.remove(key);
+        orphans.remove(key);
+    }
+
+    public void run() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            synchronized (this) {
+                route(key);
+            }
+        }
+    }
+
+    private void route(WatchKey key) {
+        Watcher watcher = owners.get(key);
+        if (watcher == null) {
+            orphans.add(key);
+            return;
+        }
+        watcher.dispatch(key);
+        Registration registration = registrations.get(watcher);
+        if (registration != null) {
+            registration.schedule(0);
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        executor.shutdownNow();
+        watchService.close();
+    }
+
+    public class Registration {
+
+        private final Runnable task;
+        private final Watcher watcher;
+        private final Runnable runner = new Runnable() {
+            public void run() {
+                execute();
+            }
+        };
+        private ScheduledFuture<?> future;
+        private boolean started;
+        private boolean running;
+        private boolean cancelled;
+        private long requested = -1;
+
+        Registration(Runnable task, Watcher watcher) {
+            this.task = task;
+            this.watcher = watcher;
+        }
+
+        /**
+         * Run the task for the first time after the given delay, or earlier
+         * if events were dispatched in the meantime.
+         *
+         * @param delay the delay in milliseconds
+         */
+        public synchronized void start(long delay) {
+            if (started) {
+                return;
+            }
+            started = true;
+            long pending = requested;
+            requested = -1;
+            schedule(pending < 0 ? delay : Math.min(pending, delay));
+        }
+
+        /**
+         * Run the task after the given delay, unless it is already
+         * scheduled to run earlier.  Before the registration is started,
+         * the request is only remembered.
+         *
+         * @param delay the delay in milliseconds
+         */
+        public synchronized void schedule(long delay) {
+            if (cancelled) {
+                return;
+            }
+            if (!started || running) {
+                requested = requested < 0 ? delay : Math.min(requested, delay);
+                return;
+            }
+            if (future != null) {
+                if (future.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                    return;
+                }
+                future.cancel(false);
+            }
+            future = executor.schedule(runner, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Cancel the task, waiting for a running execution to complete.
+         */
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (future != null) {
+                    future.cancel(false);
+                    future = null;
+                }
+                long deadline = System.currentTimeMillis() + 10000;
+                while (running && System.currentTimeMillis() < deadline) {
+                    try {
+                        wait(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            if (watcher != null) {
+                registrations.remove(watcher);
+            }
+        }
+
+        private void execute() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (running) {
+                    requested = 0;
+                    return;
+                }
+                running = true;
+                future = null;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.error("Error while processing watched directory", t);
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    notifyAll();
+                    long delay = requested;
+                    requested = -1;
+                    if (delay >= 0) {
+                        schedule(delay);
+                    }
+                }
+            }
+        }
+    }
+
+}
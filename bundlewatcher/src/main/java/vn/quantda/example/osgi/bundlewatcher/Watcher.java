@@ -9,12 +9,16 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.WatchEvent;
@@ -23,10 +27,19 @@ import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A File watching service
@@ -35,11 +48,24 @@ public abstract class Watcher implements Closeable {
 	private Path root;
     private boolean watch = true;
     private WatchService watcher;
+    private WatchDispatcher dispatcher;
+    private EventSource eventSource = new JdkEventSource();
+    // keys signalled on the shared watch service and routed to this watcher
+    private final Queue<WatchKey> dispatched = new ConcurrentLinkedQueue<WatchKey>();
     private PathMatcher dirMatcher;
     private PathMatcher fileMatcher;
     private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
     private volatile long lastModified;
-    private final Map<Path, Boolean> processedMap = new ConcurrentHashMap<Path, Boolean>();
+    private int parallelism = 1;
+    // Hybrid mode: directories that are not watched are polled through their modification time
+    private int maxWatches;
+    private volatile int watchLimit = Integer.MAX_VALUE;
+    private final Map<Path, Long> polled = new ConcurrentHashMap<Path, Long>();
+    private final Map<Path, Integer> activity = new ConcurrentHashMap<Path, Integer>();
+    private long lastRebalance = System.currentTimeMillis();
+    private static final long REBALANCE_INTERVAL = 30000;
+    // Processed files and their last modified time when they were last scanned
+    private FileTable files = new FileTable();
 
     public void init() throws IOException {
         if (root == null) {
@@ -57,12 +83,19 @@ public abstract class Watcher implements Closeable {
             fail("Root path is not a directory: " + root);
         }
         if (watcher == null) {
-            watcher = watch ? getFileSystem().newWatchService() : null;
+            watcher = watch ? eventSource.newWatchService(getFileSystem()) : null;
         }
     }
 
     public void close() throws IOException {
-        if (watcher != null) {
+        if (dispatcher != null) {
+            // the watch service is shared, only release our own keys
+            for (WatchKey key : keys.keySet()) {
+                key.cancel();
+                dispatcher.unbind(key);
+            }
+            keys.clear();
+        } else if (watcher != null) {
             watcher.close();
         }
     }
@@ -108,6 +141,91 @@ public abstract class Watcher implements Closeable {
         this.watcher = watcher;
     }
 
+    public WatchDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Use the watch service of a shared dispatcher instead of a private one.
+     * Signalled keys are then routed to this watcher by the dispatcher and
+     * {@link #processEvents()} only consumes those.
+     */
+    public void setDispatcher(WatchDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.watcher = dispatcher != null ? dispatcher.getWatchService() : null;
+        if (dispatcher != null) {
+            // the shared watch service is always the JDK one
+            this.eventSource = new JdkEventSource();
+        }
+    }
+
+    public EventSource getEventSource() {
+        return eventSource;
+    }
+
+    /**
+     * Set the source of file system events, which must be done before
+     * {@link #init()}.  Defaults to the JDK watch service.
+     */
+    public void setEventSource(EventSource eventSource) {
+        this.eventSource = eventSource;
+    }
+
+    void dispatch(WatchKey key) {
+        dispatched.add(key);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads used by {@link #rescan()} to walk the tree.
+     * When greater than one, sibling sub-directories are walked concurrently
+     * on a fork/join pool, so {@link #process(Path)} may be called from
+     * several threads at once.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Share the table in which the modification times of the processed files
+     * are kept, so that a scanner keeps its own state in the same table.
+     * Must be called before the first scan.
+     */
+    void setFileTable(FileTable files) {
+        this.files = files;
+    }
+
+    public int getMaxWatches() {
+        return maxWatches;
+    }
+
+    /**
+     * Limit the number of directories watched through the event source.
+     * Directories above that limit, and directories whose registration fails
+     * (for instance when <code>fs.inotify.max_user_watches</code> is reached),
+     * are polled through their modification time instead.  The most active
+     * polled directories are regularly promoted to watches, and the least
+     * active watched ones are demoted in exchange.
+     *
+     * @param maxWatches the maximum number of watches, 0 for no limit
+     */
+    public void setMaxWatches(int maxWatches) {
+        this.maxWatches = maxWatches;
+        this.watchLimit = maxWatches > 0 ? maxWatches : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Check if some directories are polled, in which case
+     * {@link #processEvents()} must be called regularly even when no
+     * event is reported.
+     */
+    public boolean hasPolledDirectories() {
+        return !polled.isEmpty();
+    }
+
     public PathMatcher getDirMatcher() {
         return dirMatcher;
     }
@@ -131,125 +249,423 @@ public abstract class Watcher implements Closeable {
     public void rescan() throws IOException {
         for (WatchKey key : keys.keySet()) {
             key.cancel();
+            if (dispatcher != null) {
+                dispatcher.unbind(key);
+            }
         }
         keys.clear();
-        Files.walkFileTree(root,
-                           EnumSet.of(FileVisitOption.FOLLOW_LINKS),
-                           Integer.MAX_VALUE,
-                           new FilteringFileVisitor());
+        polled.clear();
+        activity.clear();
+        if (parallelism > 1) {
+            walkParallel(root);
+        } else {
+            Files.walkFileTree(root,
+                               EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                               Integer.MAX_VALUE,
+                               new FilteringFileVisitor());
+        }
     }
 
-    @SuppressWarnings("unchecked")
-	public void processEvents() {
+    /**
+     * Walk the tree below the given directory on a fork/join pool, following
+     * links like {@link #rescan()} does.  Each directory is a task that
+     * registers its watch key, scans its files and forks one task per
+     * sub-directory.
+     */
+    private void walkParallel(Path start) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class);
+            pool.invoke(new WalkTask(start, attrs, null, Thread.currentThread()));
+        } finally {
+            pool.shutdown();
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    public void processEvents() {
+        if (!polled.isEmpty()) {
+            pollDirectories();
+        }
         while (true) {
-            WatchKey key = watcher.poll();
+            WatchKey key = dispatcher != null ? dispatched.poll() : watcher.poll();
             if (key == null) {
                 break;
             }
-            Path dir = keys.get(key);
-            if (dir == null) {
-                warn("Could not find key for " + key);
+            if (!processKey(key)) {
+                // all directories are inaccessible
+                break;
+            }
+        }
+    }
+
+    /**
+     * Block until events are available or the timeout expires, and process
+     * all the pending events.
+     *
+     * @param timeout the maximum time to wait in milliseconds, or a negative
+     *                value to wait until events arrive
+     * @return <code>true</code> if events have been processed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitEvents(long timeout) throws InterruptedException {
+        if (dispatcher != null) {
+            throw new IllegalStateException("Events are dispatched by a shared dispatcher");
+        }
+        WatchKey key;
+        try {
+            key = timeout < 0 ? watcher.take() : watcher.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+        if (key == null) {
+            return false;
+        }
+        if (processKey(key)) {
+            processEvents();
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean processKey(WatchKey key) {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            warn("Could not find key for " + key);
+            return true;
+        }
+        if (!polled.isEmpty() || maxWatches > 0) {
+            recordActivity(dir);
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Kind<?> kind = event.kind();
+
+            if (kind == OVERFLOW) {
+                // events for this directory have been lost, re-sync it against what we know
+                debug("Overflow on {}", dir);
+                try {
+                    resync(dir);
+                } catch (IOException x) {
+                    warn("Unable to re-sync " + dir + " after overflow: " + x);
+                }
                 continue;
             }
 
-            for (WatchEvent<?> event : key.pollEvents()) {
-                Kind<?> kind = event.kind();
-                WatchEvent<Path> ev = (WatchEvent<Path>)event;
+            WatchEvent<Path> ev = (WatchEvent<Path>)event;
 
-                // Context for directory entry event is the file name of entry
-                Path name = ev.context();
-                Path child = dir.resolve(name);
+            // Context for directory entry event is the file name of entry
+            Path name = ev.context();
+            Path child = dir.resolve(name);
 
-                debug("Processing event {} on path {}", kind, child);
+            debug("Processing event {} on path {}", kind, child);
 
-                if (kind == OVERFLOW) {
-//                    rescan();
-                    continue;
-                }
+            try {
+                if (kind == ENTRY_CREATE) {
+                    BasicFileAttributes attrs = readAttributes(child);
+                    if (attrs == null) {
+                        // already gone, a delete event will follow
+                    } else if (attrs.isDirectory()) {
 
-                try {
-                    if (kind == ENTRY_CREATE) {
-                        if (Files.isDirectory(child)) {
-
-                            // if directory is created, and watching recursively, then
-                            // register it and its sub-directories
-                            Files.walkFileTree(child, new FilteringFileVisitor());
-                        } else if (Files.isRegularFile(child)) {
-                            scan(child);
-                        }
-                    } else if (kind == ENTRY_MODIFY) {
-                        if (Files.isRegularFile(child)) {
-                            scan(child);
-                        }
-                    } else if (kind == ENTRY_DELETE) {
-                        unscan(child);
+                        // if directory is created, and watching recursively, then
+                        // register it and its sub-directories
+                        Files.walkFileTree(child, new FilteringFileVisitor());
+                    } else if (attrs.isRegularFile()) {
+                        scan(child, attrs);
                     }
-                } catch (IOException x) {
-                    // ignore to keep sample readbale
-                    x.printStackTrace();
+                } else if (kind == ENTRY_MODIFY) {
+                    BasicFileAttributes attrs = readAttributes(child);
+                    if (attrs != null && attrs.isRegularFile()) {
+                        scan(child, attrs);
+                    }
+                } else if (kind == EventSource.ENTRY_COMPLETE) {
+                    BasicFileAttributes attrs = readAttributes(child);
+                    if (attrs != null && attrs.isRegularFile()) {
+                        scan(child, attrs, true);
+                    }
+                } else if (kind == ENTRY_DELETE) {
+                    unscan(child);
                 }
+            } catch (IOException x) {
+                // ignore to keep sample readbale
+                x.printStackTrace();
             }
+        }
 
-            // reset key and remove from set if directory no longer accessible
-            boolean valid = key.reset();
-            if (!valid) {
-                debug("Removing key " + key + " and dir " + dir + " from keys");
-                keys.remove(key);
+        // reset key and remove from set if directory no longer accessible
+        boolean valid = key.reset();
+        if (!valid) {
+            debug("Removing key " + key + " and dir " + dir + " from keys");
+            keys.remove(key);
+            if (dispatcher != null) {
+                dispatcher.unbind(key);
+            }
+            return !keys.isEmpty();
+        }
+        return true;
+    }
 
-                // all directories are inaccessible
-                if (keys.isEmpty()) {
-                    break;
+    /**
+     * Re-synchronize a single watched directory after its key overflowed,
+     * or a polled directory whose modification time has changed.
+     * Only the direct children of the directory are listed: files that are
+     * new or have been modified since they were last seen are scanned again,
+     * new sub-directories are walked and registered, and known files that
+     * have disappeared are reported as removed.  Other watch keys are left
+     * untouched.
+     *
+     * @param dir the directory whose events have been lost
+     */
+    protected void resync(Path dir) throws IOException {
+        debug("Re-syncing directory {}", dir);
+        Set<Path> present = new HashSet<Path>();
+        Set<Path> watched = new HashSet<Path>(keys.values());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                present.add(child);
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    present.remove(child);
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    if (!watched.contains(child) && !polled.containsKey(child)) {
+                        Files.walkFileTree(child, new FilteringFileVisitor());
+                    }
+                } else if (attrs.isRegularFile()) {
+                    if (files.getModified(child) != attrs.lastModifiedTime().toMillis()) {
+                        scan(child, attrs);
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // the directory itself is gone, everything below it is reported as removed
+        }
+        for (Path child : files.children(dir)) {
+            if (!present.contains(child)) {
+                for (Path path : files.removeAllModified(child).keySet()) {
+                    debug("File has been deleted: " + path);
+                    if (isMatchesFile(path)) {
+                        onRemove(path);
+                        lastModified = System.currentTimeMillis();
+                    }
                 }
             }
         }
     }
 
-    private void scan(final Path file) throws IOException {
+    private void scan(final Path file, BasicFileAttributes attrs) throws IOException {
+        scan(file, attrs, false);
+    }
+
+    private void scan(final Path file, BasicFileAttributes attrs, boolean complete) throws IOException {
         if (isMatchesFile(file)) {
-            process(file);
-            processedMap.put(file, Boolean.TRUE);
+            if (complete) {
+                processComplete(file, attrs);
+            } else {
+                process(file, attrs);
+            }
+            files.putModified(file, attrs.lastModifiedTime().toMillis());
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
         }
     }
 
     protected boolean isMatchesFile(Path file) {
         boolean matches = true;
         if (fileMatcher != null) {
-            Path rel = root.relativize(file);
-            matches = fileMatcher.matches(rel);
+            matches = matches(fileMatcher, file);
         }
         return matches;
     }
 
+    /**
+     * Match a path below the root against a matcher of relative paths.
+     * A {@link FilterMatcher} matches the relative part in place, other
+     * matchers are given the relativized path.
+     */
+    private boolean matches(PathMatcher matcher, Path path) {
+        if (matcher instanceof FilterMatcher) {
+            return ((FilterMatcher) matcher).matches(root, path);
+        }
+        return matcher.matches(root.relativize(path));
+    }
+
     private void unscan(final Path file) throws IOException {
+        // the path and everything known below it are gone
+        Map<Path, Long> removed = files.removeAllModified(file);
         if (isMatchesFile(file)) {
             onRemove(file);
             lastModified = System.currentTimeMillis();
-        } else {
-            // lets find all the files that now no longer exist
-            List<Path> files = new ArrayList<Path>(processedMap.keySet());
-            for (Path path : files) {
-                if (!Files.exists(path)) {
-                    debug("File has been deleted: " + path);
-                    processedMap.remove(path);
-                    if (isMatchesFile(path)) {
-                        onRemove(file);
-                        lastModified = System.currentTimeMillis();
-                    }
-                }
+        }
+        for (Path path : removed.keySet()) {
+            if (!path.equals(file) && isMatchesFile(path)) {
+                debug("File has been deleted: " + path);
+                onRemove(path);
+                lastModified = System.currentTimeMillis();
             }
         }
     }
 
     private void watch(final Path path) throws IOException {
         if (watcher != null) {
-            WatchKey key = path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            if (keys.size() >= watchLimit) {
+                poll(path);
+                return;
+            }
+            WatchKey key;
+            try {
+                key = eventSource.register(watcher, path);
+            } catch (IOException e) {
+                // most likely the limit of watches of the system, poll the remaining directories
+                if (watchLimit == Integer.MAX_VALUE) {
+                    warn("Unable to watch " + path + " (" + e + "), polling directories above "
+                            + keys.size() + " watches");
+                }
+                watchLimit = keys.size();
+                poll(path);
+                return;
+            }
             keys.put(key, path);
+            if (dispatcher != null) {
+                dispatcher.bind(key, this);
+            }
             debug("Watched path " + path + " key " + key);
         } else {
             warn("No watcher yet for path " + path);
         }
     }
 
+    private void unwatch(WatchKey key) {
+        key.cancel();
+        keys.remove(key);
+        if (dispatcher != null) {
+            dispatcher.unbind(key);
+        }
+    }
+
+    /**
+     * Poll a directory through its modification time instead of watching it.
+     * The time is recorded before the directory is listed, so that any later
+     * change in its entries is noticed.
+     */
+    private void poll(Path path) throws IOException {
+        polled.put(path, Files.getLastModifiedTime(path).toMillis());
+        debug("Polled path " + path);
+    }
+
+    /**
+     * Check the modification time of all the polled directories, which costs
+     * one access to the file system per directory, and re-sync the ones that
+     * have changed.  Note that the modification time of a directory only
+     * changes when entries are added, removed or renamed: files being written
+     * are then followed by the scanner until they are stable.
+     */
+    private void pollDirectories() {
+        for (Map.Entry<Path, Long> entry : polled.entrySet()) {
+            Path dir = entry.getKey();
+            try {
+                long modified = Files.getLastModifiedTime(dir).toMillis();
+                if (modified != entry.getValue()) {
+                    entry.setValue(modified);
+                    recordActivity(dir);
+                    resync(dir);
+                }
+            } catch (NoSuchFileException e) {
+                polled.remove(dir);
+                activity.remove(dir);
+                try {
+                    unscan(dir);
+                } catch (IOException x) {
+                    // ignore
+                }
+            } catch (IOException e) {
+                warn("Unable to poll " + dir + ": " + e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastRebalance >= REBALANCE_INTERVAL) {
+            lastRebalance = now;
+            rebalance();
+        }
+    }
+
+    private void recordActivity(Path dir) {
+        Integer count = activity.get(dir);
+        activity.put(dir, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Promote the most active polled directories to watches, demoting the
+     * least active watched directories when no watch is left.  Activity
+     * counters are then halved so that old activity fades away.
+     */
+    private void rebalance() {
+        List<Path> candidates = new ArrayList<Path>(polled.keySet());
+        Collections.sort(candidates, new Comparator<Path>() {
+            public int compare(Path p1, Path p2) {
+                return activityOf(p2) - activityOf(p1);
+            }
+        });
+        for (Path dir : candidates) {
+            int hot = activityOf(dir);
+            if (hot == 0) {
+                break;
+            }
+            if (keys.size() >= watchLimit) {
+                WatchKey coldest = null;
+                for (Map.Entry<WatchKey, Path> entry : keys.entrySet()) {
+                    if (!entry.getValue().equals(root) && (coldest == null
+                            || activityOf(entry.getValue()) < activityOf(keys.get(coldest)))) {
+                        coldest = entry.getKey();
+                    }
+                }
+                if (coldest == null || activityOf(keys.get(coldest)) >= hot) {
+                    break;
+                }
+                Path demoted = keys.get(coldest);
+                try {
+                    // record the time before the watch is released so that no change is lost
+                    poll(demoted);
+                } catch (IOException e) {
+                    continue;
+                }
+                unwatch(coldest);
+                debug("Demoted " + demoted + " to polling");
+            }
+            try {
+                WatchKey key = eventSource.register(watcher, dir);
+                keys.put(key, dir);
+                if (dispatcher != null) {
+                    dispatcher.bind(key, this);
+                }
+                polled.remove(dir);
+                debug("Promoted " + dir + " to a watch");
+                // catch up with what happened since the last poll
+                resync(dir);
+            } catch (IOException e) {
+                watchLimit = keys.size();
+            }
+        }
+        for (Map.Entry<Path, Integer> entry : activity.entrySet()) {
+            entry.setValue(entry.getValue() / 2);
+        }
+    }
+
+    private int activityOf(Path dir) {
+        Integer count = activity.get(dir);
+        return count != null ? count : 0;
+    }
+
     protected FileSystem getFileSystem() {
         return FileSystems.getDefault();
     }
@@ -261,8 +677,7 @@ public abstract class Watcher implements Closeable {
                 throw new InterruptedIOException();
             }
             if (dirMatcher != null) {
-                Path rel = root.relativize(dir);
-                if (!"".equals(rel.toString()) && !dirMatcher.matches(rel)) {
+                if (!dir.equals(root) && !matches(dirMatcher, dir)) {
                     return FileVisitResult.SKIP_SUBTREE;
                 }
             }
@@ -274,7 +689,7 @@ public abstract class Watcher implements Closeable {
             if (Thread.interrupted()) {
                 throw new InterruptedIOException();
             }
-            scan(file);
+            scan(file, attrs);
             return FileVisitResult.CONTINUE;
         }
 
@@ -288,6 +703,95 @@ public abstract class Watcher implements Closeable {
     }
 
 
+    /**
+     * Directories being walked by a {@link WalkTask}, from the deepest one
+     * up to the root, used to detect file system loops.
+     */
+    private static class Ancestor {
+        final Object key;
+        final Ancestor parent;
+
+        Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        boolean contains(Object key) {
+            for (Ancestor a = this; a != null; a = a.parent) {
+                if (a.key.equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class WalkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+        private final Ancestor ancestors;
+        private final Thread caller;
+
+        WalkTask(Path dir, BasicFileAttributes attrs, Ancestor ancestors, Thread caller) {
+            this.dir = dir;
+            this.attrs = attrs;
+            this.ancestors = ancestors;
+            this.caller = caller;
+        }
+
+        @Override
+        protected void compute() {
+            if (caller.isInterrupted()) {
+                return;
+            }
+            if (dirMatcher != null && ancestors != null) {
+                if (!matches(dirMatcher, dir)) {
+                    return;
+                }
+            }
+            List<WalkTask> subtasks = new ArrayList<WalkTask>();
+            try {
+                Object key = attrs.fileKey() != null ? attrs.fileKey() : dir.toRealPath();
+                if (ancestors != null && ancestors.contains(key)) {
+                    debug("Skipping file system loop at {}", dir);
+                    return;
+                }
+                watch(dir);
+                Ancestor chain = new Ancestor(key, ancestors);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        if (caller.isInterrupted()) {
+                            return;
+                        }
+                        BasicFileAttributes childAttrs;
+                        try {
+                            childAttrs = Files.readAttributes(child, BasicFileAttributes.class);
+                        } catch (IOException e) {
+                            // broken link, visited as a file like Files.walkFileTree does
+                            try {
+                                childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            } catch (IOException e2) {
+                                continue;
+                            }
+                        }
+                        if (childAttrs.isDirectory()) {
+                            subtasks.add(new WalkTask(child, childAttrs, chain, caller));
+                        } else {
+                            scan(child, childAttrs);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // same as FilteringFileVisitor.visitFileFailed, keep walking the rest of the tree
+                debug("Unable to walk {}: {}", dir, e);
+            }
+            invokeAll(subtasks);
+        }
+    }
+
     /**
      * Throws an invalid argument exception after logging a warning
      * just in case the stack trace gets gobbled up by application containers
@@ -302,5 +806,22 @@ public abstract class Watcher implements Closeable {
     protected abstract void debug(String message, Object... args);
     protected abstract void warn(String message, Object... args);
     protected abstract void process(Path path);
+
+    /**
+     * Called when a file has been found or changed, with the attributes that
+     * have just been read.  Defaults to {@link #process(Path)}.
+     */
+    protected void process(Path path, BasicFileAttributes attrs) {
+        process(path);
+    }
+
+    /**
+     * Called when the event source reports that a file has been fully
+     * written.  Defaults to {@link #process(Path, BasicFileAttributes)}.
+     */
+    protected void processComplete(Path path, BasicFileAttributes attrs) {
+        process(path, attrs);
+    }
+
     protected abstract void onRemove(Path path);
 }
@@ -2,12 +2,16 @@ package vn.quantda.example.osgi.bundlewatcher;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
@@ -20,7 +24,19 @@ public class WatcherScanner extends Scanner {
     PathMatcher fileMatcher;
     Watcher watcher;
 
+    // Changes reported by the watcher, possibly from other threads, and not yet taken by a scan.
+    // Reporting a change never waits for a scan in progress.
+    final ConcurrentMap<File, Change> pending = new ConcurrentHashMap<File, Change>();
+
+    // The fields below are only accessed by the thread calling scan(), await() and nextScanDelay()
     Set<File> changed = new HashSet<File>();
+    // Changed files the event source reported as fully written
+    Set<File> completed = new HashSet<File>();
+    // State of changed files captured by the watcher since the last scan
+    Map<File, FileState> states = new HashMap<File, FileState>();
+
+    // Checksums of the sub directories in jar mode, updated from the watcher
+    final DirectoryChecksums directoryChecksums;
 
     /**
      * Create a scanner for the specified directory and file filter
@@ -30,68 +46,226 @@ public class WatcherScanner extends Scanner {
      * @param subdirMode to use when scanning
      */
     public WatcherScanner(BundleContext bundleContext, File directory, String filterString, String subdirMode) throws IOException {
+        this(bundleContext, directory, filterString, subdirMode, null);
+        start();
+    }
+
+    /**
+     * Create a scanner for the specified directory and file filter.
+     * The scanner does not watch anything until {@link #start()} is called,
+     * so that it can be configured first.
+     *
+     * @param directory the directory to scan
+     * @param filterString a filter for file names
+     * @param subdirMode to use when scanning
+     * @param dispatcher the shared dispatcher to register with, or <code>null</code> to use a private watch service
+     */
+    public WatcherScanner(BundleContext bundleContext, File directory, String filterString, String subdirMode, WatchDispatcher dispatcher) {
         super(directory, filterString, subdirMode);
         this.bundleContext = bundleContext;
-        if (filterString != null) {
-            this.fileMatcher = FileSystems.getDefault().getPathMatcher("regex:" + filterString);
-        } else {
-            this.fileMatcher = null;
-        }
+        this.fileMatcher = FilterMatcher.compile(filterString);
+        this.directoryChecksums = jarSubdir ? new DirectoryChecksums(this.directory.toPath()) : null;
         this.watcher = new ScannerWatcher();
+        this.watcher.setDispatcher(dispatcher);
         this.watcher.setFileMatcher(fileMatcher);
         this.watcher.setRootDirectory(this.directory);
+        this.watcher.setFileTable(table);
+    }
+
+    /**
+     * Register the watches and walk the directory tree for the first time.
+     */
+    public void start() throws IOException {
         this.watcher.init();
         this.watcher.rescan();
     }
 
-    public Set<File> scan(boolean reportImmediately) {
+    @Override
+    public boolean scan(boolean reportImmediately, ChangeListener listener) {
         watcher.processEvents();
-        synchronized (changed) {
-            if (changed.isEmpty()) {
-                return new HashSet<File>();
+        drain();
+        if (changed.isEmpty() && !reportImmediately) {
+            // Nothing to do, and nothing allocated
+            return true;
+        }
+        LOG.debug("Number of changes: " + changed.size() + " in " + this.directory.getAbsolutePath());
+        // Files reported before that are not found anymore
+        Set<File> removed = new HashSet<File>();
+        if (reportImmediately) {
+            removed.addAll(table.checksumFiles());
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<File> iterator = changed.iterator(); iterator.hasNext(); ) {
+            File file = iterator.next();
+            boolean complete = completed.remove(file);
+            if (!reportImmediately && !complete && !stability.isDue(file, now) && !deferred.containsKey(file)) {
+                // Still changing a short while ago, do not even compute its checksum
+                continue;
             }
-            LOG.debug("Number of changes: " + changed.size() + " in " + this.directory.getAbsolutePath());
-            Set<File> files = new HashSet<File>();
-            Set<File> removed = new HashSet<File>();
-            if (reportImmediately) {
-                removed.addAll(storedChecksums.keySet());
+            long storedChecksum = table.getChecksum(file);
+            // Reuse the state captured by the watcher, or read it once
+            FileState state = states.remove(file);
+            if (state == null) {
+                state = FileState.read(file);
             }
-            for (Iterator<File> iterator = changed.iterator(); iterator.hasNext(); ) {
-                File file = iterator.next();
-                long lastChecksum = lastChecksums.get(file) != null ? (Long) lastChecksums.get(file) : 0;
-                long storedChecksum = storedChecksums.get(file) != null ? (Long) storedChecksums.get(file) : 0;
-                long newChecksum = checksum(file);
-                lastChecksums.put(file, newChecksum);
-                if (file.exists()) {
-                    // Only handle file when it does not change anymore and it has changed since last reported
-                    if ((newChecksum == lastChecksum || reportImmediately)) {
-                        if (newChecksum != storedChecksum) {
-                            storedChecksums.put(file, newChecksum);
-                            files.add(file);
-                        } else {
-                            iterator.remove();
-                        }
-                        if (reportImmediately) {
-                            removed.remove(file);
-                        }
+            if (state != null) {
+                long newChecksum = checksumOf(file, state);
+                if (newChecksum == storedChecksum) {
+                    // Nothing to report anymore
+                    iterator.remove();
+                    stability.remove(file);
+                    deferred.remove(file);
+                    if (reportImmediately) {
+                        removed.remove(file);
                     }
-                } else {
-                    if (!reportImmediately) {
-                        removed.add(file);
+                }
+                // Only handle file when it does not change anymore and it has changed since last reported
+                else if (reportImmediately || complete || isDeferred(file, newChecksum) || isStable(file, state, newChecksum, now)) {
+                    reportChecksum(file, newChecksum);
+                    stability.remove(file);
+                    if (reportImmediately) {
+                        removed.remove(file);
                     }
+                    changed(listener, file, storedChecksum, newChecksum);
+                }
+            } else {
+                if (!reportImmediately) {
+                    removed.add(file);
                 }
             }
-            for (File file : removed) {
+        }
+        for (File file : removed) {
+            long checksum = table.getChecksum(file);
+            // Remove no longer used checksums
+            forgetChecksum(file);
+            stability.remove(file);
+            digests.remove(file);
+            if (directoryChecksums != null) {
+                directoryChecksums.remove(file.toPath());
+            }
+            completed.remove(file);
+            deferred.remove(file);
+            states.remove(file);
+            changed.remove(file);
+            if (checksum != 0) {
                 // Make sure we'll handle a file that has been deleted
-                files.add(file);
-                // Remove no longer used checksums
-                lastChecksums.remove(file);
-                storedChecksums.remove(file);
-                changed.remove(file);
+                listener.changed(file, ChangeListener.Kind.DELETED, checksum);
             }
+        }
+        if (journal != null) {
+            journal.sync();
+        }
+        return true;
+    }
 
-            return files;
+    /**
+     * In jar mode, the checksum of a sub directory is maintained from the
+     * events of the watcher, so the sub directory does not need to be walked.
+     */
+    @Override
+    long checksumOf(File file, FileState state) {
+        if (directoryChecksums != null && state != null && state.isDirectory()) {
+            Long checksum = directoryChecksums.checksum(file.toPath());
+            if (checksum != null) {
+                return checksum;
+            }
         }
+        return checksum(file, state);
+    }
+
+    /**
+     * Take the changes reported by the watcher since the last call.
+     * Each entry is removed atomically, so a change reported concurrently
+     * is either taken now or left for the next scan.
+     */
+    private void drain() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (File file : pending.keySet()) {
+            Change change = pending.remove(file);
+            if (change == null) {
+                continue;
+            }
+            changed.add(file);
+            if (change.state != null) {
+                states.put(file, change.state);
+            } else {
+                states.remove(file);
+            }
+            if (change.complete) {
+                completed.add(file);
+            }
+        }
+    }
+
+    /**
+     * Set the source of file system events, before {@link #start()} is called.
+     *
+     * @param eventSource the event source
+     */
+    public void setEventSource(EventSource eventSource) {
+        watcher.setEventSource(eventSource);
+    }
+
+    /**
+     * Limit the number of watched directories, the others being polled.
+     *
+     * @param maxWatches the maximum number of watches, 0 for no limit
+     * @see Watcher#setMaxWatches(int)
+     */
+    public void setMaxWatches(int maxWatches) {
+        watcher.setMaxWatches(maxWatches);
+    }
+
+    /**
+     * Set the number of threads used to walk the directory tree.
+     *
+     * @param parallelism the number of threads, 1 to walk on the calling thread
+     */
+    @Override
+    public void setParallelism(int parallelism) {
+        watcher.setParallelism(parallelism);
+    }
+
+    /**
+     * When no change is pending, only a file system event can bring new
+     * changes.  Otherwise the next scan should happen when the earliest
+     * pending file may become stable, bounded by the given timeout.
+     */
+    @Override
+    public long nextScanDelay(long timeout) {
+        if (!pending.isEmpty()) {
+            // new changes have been reported but not scanned yet
+            return 0;
+        }
+        if (changed.isEmpty()) {
+            // polled directories must be checked regularly
+            return watcher.hasPolledDirectories() ? timeout : -1;
+        }
+        if (!completed.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long wait = timeout;
+        for (File file : changed) {
+            wait = Math.min(wait, Math.max(1, stability.getDue(file, now) - now));
+        }
+        return wait;
+    }
+
+    /**
+     * Wait until file system events are available.  When no change is
+     * pending, this blocks until the watch service reports an event.
+     * Otherwise it blocks at most until the earliest pending file may
+     * become stable, bounded by the given timeout.
+     *
+     * @param timeout the maximum time to wait in milliseconds when changes are pending
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void await(long timeout) throws InterruptedException {
+        watcher.awaitEvents(nextScanDelay(timeout));
     }
 
     public void close() throws IOException {
@@ -102,11 +276,45 @@ public class WatcherScanner extends Scanner {
 
         @Override
         protected void process(Path path) {
+            process(path, null, false);
+        }
+
+        @Override
+        protected void process(Path path, BasicFileAttributes attrs) {
+            process(path, attrs, false);
+        }
+
+        @Override
+        protected void processComplete(Path path, BasicFileAttributes attrs) {
+            process(path, attrs, true);
+        }
+
+        private void process(Path path, BasicFileAttributes attrs, boolean complete) {
+            File file = changedFile(path);
+            if (file != null) {
+                // the attributes only describe the reported file if it has not been
+                // mapped to its first level sub directory
+                boolean self = file.equals(path.toFile());
+                if (!self && attrs != null && directoryChecksums != null) {
+                    directoryChecksums.update(path, attrs);
+                }
+                // a file inside an exploded jar directory does not make the whole directory complete
+                Change change = new Change(self && attrs != null ? FileState.of(attrs) : null, self && complete);
+                // the latest change replaces the pending one: a file written again after
+                // being reported complete has to be found stable, or be reported complete again
+                pending.put(file, change);
+            }
+        }
+
+        /**
+         * Map a changed path to the file to report according to the sub directory mode.
+         */
+        private File changedFile(Path path) {
             File file = path.toFile();
             if (!file.getParentFile().equals(directory)) {
               // File is in a sub directory.
               if (skipSubdir) {
-                return;
+                return null;
               }
               if (jarSubdir) {
                 // Walk up until the first level sub-directory.
@@ -115,19 +323,20 @@ public class WatcherScanner extends Scanner {
                   if (file == null) {
                     // The file was not actually inside the watched directory.
                     // Should not happen.
-                    return;
+                    return null;
                   }
                 } while (!file.getParentFile().equals(directory));
               }
               // Otherwise we recurse by adding the file as-is.
             }
-            synchronized (changed) {
-                changed.add(file);
-            }
+            return file;
         }
 
         @Override
         protected void onRemove(Path path) {
+            if (directoryChecksums != null) {
+                directoryChecksums.remove(path);
+            }
             process(path);
         }
 
@@ -147,4 +356,20 @@ public class WatcherScanner extends Scanner {
         }
 
     }
+
+    /**
+     * A change reported for a file and not yet taken by a scan.
+     */
+    static final class Change {
+
+        // The state captured by the watcher, or null if it must be read
+        final FileState state;
+        // Whether the event source reported the file as fully written
+        final boolean complete;
+
+        Change(FileState state, boolean complete) {
+            this.state = state;
+            this.complete = complete;
+        }
+    }
 }
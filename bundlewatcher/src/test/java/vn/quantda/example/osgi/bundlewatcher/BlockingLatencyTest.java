@@ -0,0 +1,70 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * Measures how long a jar dropped into a watched directory takes to be
+ * reported, when the watcher waits for events with {@link Scanner#await}
+ * (blocking mode) and when it sleeps the poll interval between scans.
+ */
+public class BlockingLatencyTest {
+
+    private static final long QUIET = 300;
+    private static final long POLL = 1000;
+    // time for the watch service to deliver the event and for the scan itself
+    private static final long MARGIN = 500;
+
+    @Test
+    public void testBlockingReportsWithinQuietWindow() throws Exception {
+        long blocking = measure(true);
+        long polling = measure(false);
+        assertTrue("blocking latency " + blocking + " ms", blocking <= QUIET + MARGIN);
+        assertTrue("blocking latency " + blocking + " ms, polling latency " + polling + " ms", blocking < polling);
+    }
+
+    private static long measure(boolean blocking) throws Exception {
+        Path dir = Files.createTempDirectory("latency");
+        final File jar = new File(dir.toFile(), "a.jar");
+        WatcherScanner scanner = new WatcherScanner(null, dir.toFile(), null, null, null);
+        scanner.setStability(QUIET, QUIET * 4);
+        scanner.start();
+        try {
+            scanner.scan(true);
+            final long[] dropped = new long[1];
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(POLL * 7 / 10);
+                        dropped[0] = System.currentTimeMillis();
+                        Files.write(jar.toPath(), new byte[] { 1 });
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            writer.start();
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!scanner.scan(false).contains(jar)) {
+                assertTrue("not reported", System.currentTimeMillis() < deadline);
+                if (blocking) {
+                    scanner.await(POLL);
+                } else {
+                    Thread.sleep(POLL);
+                }
+            }
+            writer.join();
+            return System.currentTimeMillis() - dropped[0];
+        } finally {
+            scanner.close();
+            Files.deleteIfExists(jar.toPath());
+            Files.delete(dir);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Version;
+
+/**
+ * Compares {@link BundleManifest} with reading the manifest through a
+ * {@link JarFile}: first the identity found in every jar of a directory,
+ * the local Maven repository by default, then the time taken to read it
+ * from large generated jars, with few huge entries or many small ones.
+ */
+public class BundleManifestBenchmark
+{
+
+    public static void main(String[] args) throws Exception
+    {
+        Path repository = args.length > 0 ? Paths.get(args[0]) : Paths.get(System.getProperty("user.home"), ".m2", "repository");
+        final List<Path> jars = new ArrayList<Path>();
+        if (Files.isDirectory(repository))
+        {
+            Files.walkFileTree(repository, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    if (file.toString().endsWith(".jar"))
+                    {
+                        jars.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        int same = 0;
+        int bundles = 0;
+        for (Path jar : jars)
+        {
+            String expected = readJarFile(jar.toFile());
+            String actual;
+            try
+            {
+                BundleManifest manifest = BundleManifest.read(jar.toFile());
+                actual = manifest != null ? manifest.toString() : null;
+            }
+            catch (IOException e)
+            {
+                actual = "error";
+            }
+            if (expected == null ? actual == null : expected.equals(actual))
+            {
+                same++;
+            }
+            else
+            {
+                System.out.println(jar + ": " + expected + " with JarFile, " + actual + " with BundleManifest");
+            }
+            bundles += actual != null ? 1 : 0;
+        }
+        System.out.printf("%d jars in %s: %d identical, %d bundles%n", jars.size(), repository, same, bundles);
+
+        Path dir = Files.createTempDirectory("manifest");
+        Random random = new Random(1);
+        // uncompressed size in MB and number of entries
+        for (int[] config : new int[][] { { 200, 5000 }, { 100, 50 }, { 50, 20000 } })
+        {
+            File file = dir.resolve("large" + config[1] + ".jar").toFile();
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().putValue("Bundle-SymbolicName", "com.acme.large");
+            manifest.getMainAttributes().putValue("Bundle-Version", "1.2.3.qualifier");
+            // half random, half zeros, so that the entries are deflated to about half their size
+            byte[] content = new byte[(int) ((long) config[0] * 1024 * 1024 / config[1] / 2)];
+            try (JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(file)), manifest))
+            {
+                for (int i = 0; i < config[1]; i++)
+                {
+                    out.putNextEntry(new JarEntry("com/acme/large/pkg" + (i % 100) + "/Class" + i + ".class"));
+                    random.nextBytes(content);
+                    out.write(content);
+                    out.write(new byte[content.length]);
+                }
+            }
+            // warm up
+            for (int i = 0; i < 200; i++)
+            {
+                readJarFile(file);
+                BundleManifest.read(file);
+            }
+            int reads = 500;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < reads; i++)
+            {
+                readJarFile(file);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < reads; i++)
+            {
+                BundleManifest.read(file);
+            }
+            long t2 = System.nanoTime();
+            System.out.printf("%4d MB, %5d entries: JarFile %7.1f us, BundleManifest %6.1f us per read (%s)%n",
+                    file.length() >> 20, config[1] + 2, (t1 - t0) / 1e3 / reads, (t2 - t1) / 1e3 / reads, BundleManifest.read(file));
+        }
+    }
+
+    private static String readJarFile(File file)
+    {
+        try (JarFile jar = new JarFile(file, false))
+        {
+            Manifest manifest = jar.getManifest();
+            String bsn = manifest != null ? manifest.getMainAttributes().getValue("Bundle-SymbolicName") : null;
+            if (bsn == null || bsn.split(";")[0].trim().isEmpty())
+            {
+                return null;
+            }
+            return bsn.split(";")[0].trim() + "/" + Version.parseVersion(manifest.getMainAttributes().getValue("Bundle-Version"));
+        }
+        catch (IOException e)
+        {
+            return "error";
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+}
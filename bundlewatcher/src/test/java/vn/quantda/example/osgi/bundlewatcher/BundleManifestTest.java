@@ -0,0 +1,193 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Version;
+
+public class BundleManifestTest
+{
+
+    private static final String MANIFEST = "Manifest-Version: 1.0\r\n"
+            + "Bundle-SymbolicName: com.acme.test;singleton:=true\r\n"
+            + "Bundle-Version: 1.2.3.qualifier\r\n\r\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Write a jar with some entries, the manifest coming after the given number of them.
+     */
+    private File jar(String manifest, int method, int before, int after, String comment) throws IOException
+    {
+        File file = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file)))
+        {
+            for (int i = 0; i < before; i++)
+            {
+                put(out, "com/acme/test/Class" + i + ".class", new byte[] { (byte) i }, method);
+            }
+            if (manifest != null)
+            {
+                put(out, "META-INF/MANIFEST.MF", bytes(manifest), method);
+            }
+            for (int i = before; i < before + after; i++)
+            {
+                put(out, "com/acme/test/Class" + i + ".class", new byte[] { (byte) i }, method);
+            }
+            if (comment != null)
+            {
+                out.setComment(comment);
+            }
+        }
+        return file;
+    }
+
+    private static void put(ZipOutputStream out, String name, byte[] content, int method) throws IOException
+    {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setCrc(crc.getValue());
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private static void assertBundle(File file) throws IOException
+    {
+        BundleManifest manifest = BundleManifest.read(file);
+        assertEquals("com.acme.test", manifest.getSymbolicName());
+        assertEquals(new Version(1, 2, 3, "qualifier"), manifest.getVersion());
+    }
+
+    @Test
+    public void testDeflated() throws IOException
+    {
+        assertBundle(jar(MANIFEST, ZipEntry.DEFLATED, 0, 10, null));
+    }
+
+    @Test
+    public void testStored() throws IOException
+    {
+        assertBundle(jar(MANIFEST, ZipEntry.STORED, 0, 10, null));
+    }
+
+    @Test
+    public void testManifestAfterManyEntries() throws IOException
+    {
+        // the manifest is beyond the first chunks of the central directory
+        assertBundle(jar(MANIFEST, ZipEntry.DEFLATED, 1000, 0, null));
+    }
+
+    @Test
+    public void testCommentAfterEndRecord() throws IOException
+    {
+        assertBundle(jar(MANIFEST, ZipEntry.DEFLATED, 0, 10, "a comment\u0000with some PK\u0005\u0006 in it"));
+    }
+
+    @Test
+    public void testZip64() throws IOException
+    {
+        // too many entries for the plain end record
+        assertBundle(jar(MANIFEST, ZipEntry.STORED, 0, 70000, null));
+    }
+
+    @Test
+    public void testNotBundles() throws IOException
+    {
+        assertNull(BundleManifest.read(jar(null, ZipEntry.DEFLATED, 0, 10, null)));
+        assertNull(BundleManifest.read(jar("Manifest-Version: 1.0\r\n\r\n", ZipEntry.DEFLATED, 0, 1, null)));
+        assertNull(BundleManifest.read(jar("Manifest-Version: 1.0\r\nBundle-SymbolicName: ;x=y\r\n\r\n", ZipEntry.DEFLATED, 0, 1, null)));
+        assertNull(BundleManifest.read(jar("Manifest-Version: 1.0\r\nBundle-SymbolicName: a\r\nBundle-Version: a.b\r\n\r\n",
+                ZipEntry.DEFLATED, 0, 1, null)));
+    }
+
+    @Test
+    public void testDefaultVersion() throws IOException
+    {
+        BundleManifest manifest = BundleManifest.read(jar("Manifest-Version: 1.0\r\nBundle-SymbolicName: a\r\n\r\n", ZipEntry.DEFLATED, 0, 1, null));
+        assertEquals("a/0.0.0", manifest.toString());
+    }
+
+    @Test
+    public void testNotZip() throws IOException
+    {
+        File file = folder.newFile();
+        Files.write(file.toPath(), new byte[1000]);
+        assertNotRead(file);
+        assertNotRead(folder.newFile());
+    }
+
+    @Test
+    public void testCorruptSizes() throws IOException
+    {
+        File file = jar(MANIFEST, ZipEntry.DEFLATED, 0, 1, null);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int cen = -1;
+        for (int i = bytes.length - 4; i >= 0 && cen < 0; i--)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(i) == 0x02014b50 && new String(bytes, i + 46, 20, "UTF-8").equals("META-INF/MANIFEST.MF"))
+            {
+                cen = i;
+            }
+        }
+        // compressed and uncompressed sizes: negative as an int, too large, beyond the end of the file
+        for (int offset : new int[] { 20, 24 })
+        {
+            for (int size : new int[] { 0xf0000000, 0x7fffffff, 2 * 1024 * 1024, bytes.length })
+            {
+                if (offset == 24 && size == bytes.length)
+                {
+                    // a larger uncompressed size only leaves room for more
+                    continue;
+                }
+                byte[] corrupt = bytes.clone();
+                ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(cen + offset, size);
+                Files.write(file.toPath(), corrupt);
+                assertNotRead(file);
+            }
+        }
+    }
+
+    private static void assertNotRead(File file)
+    {
+        try
+        {
+            BundleManifest.read(file);
+            fail("IOException expected for " + file);
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures how long reporting a change to a {@link WatcherScanner} takes
+ * while another thread scans in a loop: one thread reports 2M events over
+ * 20,000 files, the main thread scans until it is done.  A report waiting
+ * behind a scan shows up as a high maximum latency.
+ */
+public class ChangeContentionBenchmark {
+
+    private static final long EVENTS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("contention");
+        final Path[] paths = new Path[20000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = Files.write(dir.resolve("f" + i + ".jar"), new byte[] { 1 });
+        }
+        for (int round = 0; round < 3; round++) {
+            final WatcherScanner scanner = new WatcherScanner(null, dir.toFile(), null, null, null);
+            try {
+                scanner.setStability(0, 0);
+                scanner.start();
+                scanner.scan(true);
+                final long[] result = new long[3];
+                Thread producer = new Thread() {
+                    public void run() {
+                        long start = System.nanoTime();
+                        long max = 0;
+                        long slow = 0;
+                        for (long i = 0; i < EVENTS; i++) {
+                            long t = System.nanoTime();
+                            scanner.watcher.process(paths[(int) (i % paths.length)]);
+                            long latency = System.nanoTime() - t;
+                            max = Math.max(max, latency);
+                            slow += latency > 1000000 ? 1 : 0;
+                        }
+                        result[0] = System.nanoTime() - start;
+                        result[1] = max;
+                        result[2] = slow;
+                    }
+                };
+                producer.start();
+                int scans = 0;
+                long reported = 0;
+                while (producer.isAlive()) {
+                    reported += scanner.scan(false).size();
+                    scans++;
+                }
+                producer.join();
+                System.out.printf("%d events in %d ms, max report latency %.1f ms, %d reports over 1 ms; %d scans, %d reported%n",
+                        EVENTS, result[0] / 1000000, result[1] / 1e6, result[2], scans, reported);
+            } finally {
+                scanner.close();
+            }
+        }
+    }
+
+}
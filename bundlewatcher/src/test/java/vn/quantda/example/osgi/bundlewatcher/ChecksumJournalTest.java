@@ -0,0 +1,165 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChecksumJournalTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Map<File, Long> reload(Path file, String key) throws IOException
+    {
+        ChecksumJournal journal = new ChecksumJournal(file, key);
+        try
+        {
+            return journal.load();
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testReloadAfterRestart() throws IOException
+    {
+        Path file = folder.getRoot().toPath().resolve("state/checksums.journal");
+        ChecksumJournal journal = new ChecksumJournal(file, "/deploy");
+        assertTrue(journal.load().isEmpty());
+        journal.put(new File("/deploy/a.jar"), 1);
+        journal.put(new File("/deploy/b.jar"), 2);
+        journal.put(new File("/deploy/a.jar"), 3);
+        journal.put(new File("/deploy/c.jar"), 4);
+        journal.remove(new File("/deploy/c.jar"));
+        // a zero checksum records a removal, it is never stored
+        journal.put(new File("/deploy/d.jar"), 0);
+        journal.close();
+
+        Map<File, Long> checksums = reload(file, "/deploy");
+        assertEquals(2, checksums.size());
+        assertEquals(Long.valueOf(3), checksums.get(new File("/deploy/a.jar")));
+        assertEquals(Long.valueOf(2), checksums.get(new File("/deploy/b.jar")));
+    }
+
+    @Test
+    public void testAnotherKeyIsDiscarded() throws IOException
+    {
+        Path file = folder.getRoot().toPath().resolve("checksums.journal");
+        ChecksumJournal journal = new ChecksumJournal(file, "/deploy");
+        journal.load();
+        journal.put(new File("/deploy/a.jar"), 1);
+        journal.close();
+
+        assertTrue(reload(file, "/other").isEmpty());
+        // the journal has been rewritten for the other key
+        assertTrue(reload(file, "/deploy").isEmpty());
+    }
+
+    @Test
+    public void testCorruptedRecordEndsTheJournal() throws IOException
+    {
+        Path file = folder.getRoot().toPath().resolve("checksums.journal");
+        ChecksumJournal journal = new ChecksumJournal(file, "/deploy");
+        journal.load();
+        journal.put(new File("/deploy/a.jar"), 1);
+        journal.put(new File("/deploy/b.jar"), 2);
+        journal.close();
+
+        // flip a byte of the checksum of the last record
+        byte[] bytes = Files.readAllBytes(file);
+        int index = indexOf(bytes, "/deploy/b.jar".getBytes(Charset.forName("UTF-8")));
+        bytes[index + "/deploy/b.jar".length()] ^= 1;
+        Files.write(file, bytes);
+
+        Map<File, Long> checksums = reload(file, "/deploy");
+        assertEquals(1, checksums.size());
+        assertEquals(Long.valueOf(1), checksums.get(new File("/deploy/a.jar")));
+
+        // the journal goes on after the last valid record
+        journal = new ChecksumJournal(file, "/deploy");
+        journal.load();
+        journal.put(new File("/deploy/c.jar"), 3);
+        journal.close();
+        checksums = reload(file, "/deploy");
+        assertEquals(2, checksums.size());
+        assertEquals(Long.valueOf(3), checksums.get(new File("/deploy/c.jar")));
+    }
+
+    @Test
+    public void testCompaction() throws IOException
+    {
+        Path file = folder.getRoot().toPath().resolve("checksums.journal");
+        ChecksumJournal journal = new ChecksumJournal(file, "/deploy");
+        journal.load();
+        // enough obsolete records to compact the journal several times
+        for (int i = 1; i <= 20000; i++)
+        {
+            journal.put(new File("/deploy/f" + (i % 100) + ".jar"), i);
+        }
+        journal.remove(new File("/deploy/f0.jar"));
+        long size = Files.size(file);
+        journal.close();
+
+        // 20000 records would not fit in the initial 64k
+        assertEquals(64 * 1024, size);
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+        Map<File, Long> checksums = reload(file, "/deploy");
+        assertEquals(99, checksums.size());
+        assertNull(checksums.get(new File("/deploy/f0.jar")));
+        assertEquals(Long.valueOf(19999), checksums.get(new File("/deploy/f99.jar")));
+        assertEquals(Long.valueOf(19901), checksums.get(new File("/deploy/f1.jar")));
+    }
+
+    @Test
+    public void testAppendAfterCompactionOnLoad() throws IOException
+    {
+        Path file = folder.getRoot().toPath().resolve("checksums.journal");
+        ChecksumJournal journal = new ChecksumJournal(file, "/deploy");
+        journal.load();
+        journal.put(new File("/deploy/a.jar"), 1);
+        journal.close();
+
+        // an invalid journal is compacted into an empty one when loaded
+        journal = new ChecksumJournal(file, "/other");
+        journal.load();
+        journal.put(new File("/other/b.jar"), 2);
+        journal.close();
+
+        Map<File, Long> checksums = reload(file, "/other");
+        assertEquals(1, checksums.size());
+        assertEquals(Long.valueOf(2), checksums.get(new File("/other/b.jar")));
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern)
+    {
+        for (int i = 0; i + pattern.length <= bytes.length; i++)
+        {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j])
+            {
+                j++;
+            }
+            if (j == pattern.length)
+            {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+
+}
@@ -0,0 +1,49 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.nio.file.Paths;
+
+/**
+ * Measures the heap used by a {@link FileTable} tracking the checksum and
+ * the modification time of a number of files (100,000 by default), spread
+ * over a few levels of directories, and the time taken to insert and look
+ * them up.
+ */
+public class FileTableBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long base = used();
+        FileTable table = new FileTable();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            String path = path(i);
+            table.putChecksum(new File(path), (long) i * 31 + 7);
+            table.putModified(Paths.get(path), i);
+        }
+        long t1 = System.nanoTime();
+        long heap = used() - base;
+        long sum = 0;
+        long t2 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sum += table.getChecksum(new File(path(i)));
+        }
+        long t3 = System.nanoTime();
+        System.out.printf("%d files: heap %.1f MB (%.0f B per file), insert %d ms, lookup %d ms (%d, %d, %d)%n",
+                n, heap / 1048576.0, (double) heap / n, (t1 - t0) / 1000000, (t3 - t2) / 1000000,
+                table.checksumCount(), table.modifiedCount(), sum);
+    }
+
+    private static String path(int i) {
+        return "/opt/karaf/deploy/d" + (i / 10000) + "/s" + (i / 100 % 100) + "/bundle-" + i + ".jar";
+    }
+
+    private static long used() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
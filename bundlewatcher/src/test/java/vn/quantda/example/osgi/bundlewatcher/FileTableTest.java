@@ -0,0 +1,227 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FileTableTest {
+
+    private static final File ROOT = new File("deploy").getAbsoluteFile();
+
+    private static File file(String... names) {
+        File file = ROOT;
+        for (String name : names) {
+            file = new File(file, name);
+        }
+        return file;
+    }
+
+    @Test
+    public void testChecksums() {
+        FileTable table = new FileTable();
+        File a = file("a.jar");
+        File b = file("sub", "b.jar");
+        assertEquals(0, table.getChecksum(a));
+        assertFalse(table.hasChecksum(a));
+        table.putChecksum(a, 1);
+        table.putChecksum(b, 2);
+        table.putChecksum(a, 3);
+        assertEquals(3, table.getChecksum(a));
+        assertEquals(2, table.getChecksum(b));
+        assertTrue(table.hasChecksum(b));
+        // a parent is only a path segment
+        assertFalse(table.hasChecksum(file("sub")));
+        assertEquals(2, table.checksumCount());
+        assertEquals(new HashSet<File>(Arrays.asList(a, b)), new HashSet<File>(table.checksumFiles()));
+        table.removeChecksum(a);
+        table.removeChecksum(a);
+        assertFalse(table.hasChecksum(a));
+        assertEquals(1, table.checksumCount());
+    }
+
+    @Test
+    public void testMarkAndSweep() {
+        FileTable table = new FileTable();
+        File a = file("a.jar");
+        File b = file("b.jar");
+        File c = file("sub", "c.jar");
+        File d = file("sub", "d.jar");
+        table.putChecksum(a, 1);
+        table.putChecksum(b, 2);
+        table.putChecksum(c, 3);
+        table.putChecksum(d, 4);
+        assertEquals(1, table.mark(a));
+        assertEquals(0, table.mark(file("unknown.jar")));
+        table.markChildren(file("sub"));
+        assertEquals(Collections.singletonList(b), table.sweep());
+        // the marks are cleared by a sweep
+        assertEquals(4, table.sweep().size());
+    }
+
+    @Test
+    public void testDirectories() {
+        FileTable table = new FileTable();
+        File sub = file("sub");
+        File other = file("other");
+        assertEquals(FileTable.UNKNOWN, table.getDirectory(sub));
+        table.putDirectory(ROOT, 10);
+        table.putDirectory(sub, 20);
+        table.putDirectory(other, 30);
+        table.putChecksum(file("sub", "a.jar"), 1);
+        assertEquals(20, table.getDirectory(sub));
+        assertEquals(new HashSet<File>(Arrays.asList(sub, other)), new HashSet<File>(table.subdirectories(ROOT)));
+        table.sweep();
+        // directories not seen again are forgotten by the next sweep
+        table.putDirectory(ROOT, 10);
+        table.mark(file("sub", "a.jar"));
+        table.sweep();
+        assertEquals(FileTable.UNKNOWN, table.getDirectory(sub));
+        assertTrue(table.subdirectories(ROOT).isEmpty());
+        assertEquals(1, table.getChecksum(file("sub", "a.jar")));
+    }
+
+    @Test
+    public void testModified() {
+        FileTable table = new FileTable();
+        Path root = ROOT.toPath();
+        Path sub = root.resolve("sub");
+        assertEquals(FileTable.UNKNOWN, table.getModified(sub));
+        table.putModified(root.resolve("a.jar"), 1);
+        table.putModified(sub, 2);
+        table.putModified(sub.resolve("b.jar"), 3);
+        table.putModified(sub.resolve("deep").resolve("c.jar"), 4);
+        table.putChecksum(sub.resolve("b.jar").toFile(), 5);
+        assertEquals(4, table.modifiedCount());
+        assertEquals(new HashSet<Path>(Arrays.asList(root.resolve("a.jar"), sub)), new HashSet<Path>(table.children(root)));
+
+        Map<Path, Long> removed = table.removeAllModified(sub);
+        assertEquals(3, removed.size());
+        assertEquals(Long.valueOf(2), removed.get(sub));
+        assertEquals(Long.valueOf(4), removed.get(sub.resolve("deep").resolve("c.jar")));
+        assertEquals(1, table.modifiedCount());
+        assertEquals(FileTable.UNKNOWN, table.getModified(sub.resolve("b.jar")));
+        // the checksum is kept
+        assertEquals(5, table.getChecksum(sub.resolve("b.jar").toFile()));
+
+        table.clearModified();
+        assertEquals(0, table.modifiedCount());
+        assertEquals(FileTable.UNKNOWN, table.getModified(root.resolve("a.jar")));
+    }
+
+    @Test
+    public void testAgainstMaps() {
+        Random random = new Random(42);
+        FileTable table = new FileTable();
+        Map<File, Long> checksums = new HashMap<File, Long>();
+        Map<Path, Long> modified = new HashMap<Path, Long>();
+        for (int step = 0; step < 100000; step++) {
+            File file = ROOT;
+            int depth = 1 + random.nextInt(4);
+            for (int i = 0; i < depth; i++) {
+                file = new File(file, String.valueOf((char) ('a' + random.nextInt(4))));
+            }
+            Path path = file.toPath();
+            switch (random.nextInt(6)) {
+            case 0:
+            case 1:
+                long checksum = random.nextInt(1000) + 1;
+                table.putChecksum(file, checksum);
+                checksums.put(file, checksum);
+                break;
+            case 2:
+                table.removeChecksum(file);
+                checksums.remove(file);
+                break;
+            case 3:
+            case 4:
+                long time = random.nextInt(1000);
+                table.putModified(path, time);
+                modified.put(path, time);
+                break;
+            default:
+                Map<Path, Long> expected = new HashMap<Path, Long>();
+                for (Iterator<Map.Entry<Path, Long>> it = modified.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Path, Long> entry = it.next();
+                    if (entry.getKey().startsWith(path)) {
+                        expected.put(entry.getKey(), entry.getValue());
+                        it.remove();
+                    }
+                }
+                assertEquals(expected, table.removeAllModified(path));
+                break;
+            }
+            if (step % 1000 == 0) {
+                for (Map.Entry<File, Long> entry : checksums.entrySet()) {
+                    assertEquals(entry.getValue().longValue(), table.getChecksum(entry.getKey()));
+                }
+                for (Map.Entry<Path, Long> entry : modified.entrySet()) {
+                    assertEquals(entry.getValue().longValue(), table.getModified(entry.getKey()));
+                }
+                assertEquals(checksums.size(), table.checksumCount());
+                assertEquals(modified.size(), table.modifiedCount());
+                assertEquals(checksums.keySet(), new HashSet<File>(table.checksumFiles()));
+            }
+        }
+        Set<File> kept = new HashSet<File>();
+        for (File file : checksums.keySet()) {
+            if (random.nextBoolean()) {
+                table.mark(file);
+                kept.add(file);
+            }
+        }
+        Set<File> expected = new HashSet<File>(checksums.keySet());
+        expected.removeAll(kept);
+        List<File> swept = table.sweep();
+        assertEquals(expected.size(), swept.size());
+        assertEquals(expected, new HashSet<File>(swept));
+    }
+
+
+    /**
+     * The checksum and the modification time of 1M files, spread over a few
+     * levels of directories, fit in well under 200 bytes per file (about 120
+     * measured), where boxed maps took over 400.
+     */
+    @Test
+    public void testFootprintAtOneMillionFiles() {
+        int n = 1000000;
+        // the table alone takes about 110 MB
+        assumeTrue(Runtime.getRuntime().maxMemory() >= 512L * 1024 * 1024);
+        long base = used();
+        FileTable table = new FileTable();
+        for (int i = 0; i < n; i++) {
+            String path = "/opt/karaf/deploy/d" + (i / 10000) + "/s" + (i / 100 % 100) + "/bundle-" + i + ".jar";
+            table.putChecksum(new File(path), (long) i * 31 + 7);
+            table.putModified(Paths.get(path), i);
+        }
+        long perFile = (used() - base) / n;
+        assertEquals(n, table.checksumCount());
+        assertEquals(n, table.modifiedCount());
+        assertTrue(perFile + " bytes per file", perFile < 200);
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,56 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+/**
+ * Compares {@link FilterMatcher} with a regex {@link PathMatcher} applied to
+ * the relativized path, as the watcher used to do: time and bytes allocated
+ * per match, for a suffix, a prefix and a general expression.
+ * <p>
+ * The allocated bytes are read from the HotSpot thread MXBean.
+ */
+public class FilterMatcherBenchmark {
+
+    private static final int MATCHES = 1000000;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        Path root = Paths.get("/tmp/drop");
+        Path[] paths = new Path[1000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = root.resolve("sub").resolve("f" + i + (i % 2 == 0 ? ".jar" : ".txt"));
+        }
+        for (String regex : new String[] { ".*\\.jar", "sub/f1.*", "(sub/)?f\\d+\\.jar" }) {
+            FilterMatcher matcher = FilterMatcher.compile(regex);
+            PathMatcher old = FileSystems.getDefault().getPathMatcher("regex:" + regex);
+            // warm up
+            for (int i = 0; i < 200000; i++) {
+                matcher.matches(root, paths[i % paths.length]);
+                old.matches(root.relativize(paths[i % paths.length]));
+            }
+            long bytes0 = mx.getThreadAllocatedBytes(thread);
+            long time0 = System.nanoTime();
+            int matched = 0;
+            for (int i = 0; i < MATCHES; i++) {
+                matched += matcher.matches(root, paths[i % paths.length]) ? 1 : 0;
+            }
+            long bytes1 = mx.getThreadAllocatedBytes(thread);
+            long time1 = System.nanoTime();
+            int oldMatched = 0;
+            for (int i = 0; i < MATCHES; i++) {
+                oldMatched += old.matches(root.relativize(paths[i % paths.length])) ? 1 : 0;
+            }
+            long bytes2 = mx.getThreadAllocatedBytes(thread);
+            long time2 = System.nanoTime();
+            System.out.printf("%-20s FilterMatcher %5.1f B %4d ns, PathMatcher %5.1f B %4d ns per match, same result: %b%n",
+                    regex, (double) (bytes1 - bytes0) / MATCHES, (time1 - time0) / MATCHES,
+                    (double) (bytes2 - bytes1) / MATCHES, (time2 - time1) / MATCHES, matched == oldMatched);
+        }
+    }
+
+}
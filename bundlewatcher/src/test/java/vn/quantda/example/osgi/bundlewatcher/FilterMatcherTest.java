@@ -0,0 +1,82 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class FilterMatcherTest {
+
+    private static final Path ROOT = Paths.get("/tmp/drop");
+    private static final int MATCHES = 100000;
+
+    private static Path[] paths() {
+        Path[] paths = new Path[100];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = ROOT.resolve("sub").resolve("f" + i + (i % 2 == 0 ? ".jar" : ".txt"));
+        }
+        return paths;
+    }
+
+    @Test
+    public void testSameResultAsPathMatcher() {
+        Path[] paths = paths();
+        for (String regex : new String[] { ".*", ".*\\.jar", "sub/f1.*", "sub/f1\\.jar", "sub/.*\\.txt", "(sub/)?f\\d+\\.jar" }) {
+            FilterMatcher matcher = FilterMatcher.compile(regex);
+            PathMatcher expected = FileSystems.getDefault().getPathMatcher("regex:" + regex);
+            for (Path path : paths) {
+                Path relative = ROOT.relativize(path);
+                assertEquals(regex + " " + relative, expected.matches(relative), matcher.matches(ROOT, path));
+                assertEquals(regex + " " + relative, expected.matches(relative), matcher.matches(relative));
+            }
+        }
+    }
+
+    @Test
+    public void testSuffixDoesNotAllocate() {
+        assertNoAllocation(".*\\.jar");
+    }
+
+    @Test
+    public void testPrefixDoesNotAllocate() {
+        assertNoAllocation("sub/f1.*");
+    }
+
+    @Test
+    public void testRegexDoesNotAllocate() {
+        assertNoAllocation("(sub/)?f\\d+\\.jar");
+    }
+
+    private static void assertNoAllocation(String regex) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+        FilterMatcher matcher = FilterMatcher.compile(regex);
+        Path[] paths = paths();
+        // the first match of a path caches its string, and of a thread its matcher
+        for (int i = 0; i < MATCHES; i++) {
+            matcher.matches(ROOT, paths[i % paths.length]);
+        }
+        // a compilation of the calling loop may allocate a few bytes once, an
+        // allocating matcher would allocate in every round
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5 && allocated != 0; round++) {
+            long before = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < MATCHES; i++) {
+                matcher.matches(ROOT, paths[i % paths.length]);
+            }
+            allocated = mx.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(regex + " allocated bytes over " + MATCHES + " matches", 0, allocated);
+    }
+
+}
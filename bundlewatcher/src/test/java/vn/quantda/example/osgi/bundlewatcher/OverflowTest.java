@@ -0,0 +1,241 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.Watchable;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives a watched directory through an event source that only ever
+ * reports {@link java.nio.file.StandardWatchEventKinds#OVERFLOW}, as a
+ * watch service does once its event queue is full, and checks that the
+ * re-synchronized directory reports exactly the files that have changed.
+ */
+public class OverflowTest {
+
+    private static final int COUNT = 50;
+
+    private Path dir;
+    private OverflowSource source;
+    private WatcherScanner scanner;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("overflow");
+        source = new OverflowSource();
+        scanner = new WatcherScanner(null, dir.toFile(), null, null, null);
+        scanner.setEventSource(source);
+        scanner.setStability(0, 0);
+        scanner.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scanner.close();
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testCreatedAndDeleted() throws IOException {
+        Set<File> files = new HashSet<File>();
+        for (int i = 0; i < COUNT; i++) {
+            Path file = dir.resolve("f" + i + ".jar");
+            Files.write(file, new byte[] { (byte) i });
+            files.add(file.toFile());
+        }
+        // no event has been delivered, nothing is known yet
+        Recorder recorder = scan();
+        assertTrue(recorder.created.isEmpty());
+
+        source.overflow();
+        recorder = scan();
+        assertEquals(files, recorder.created);
+        assertTrue(recorder.modified.isEmpty());
+        assertTrue(recorder.deleted.isEmpty());
+        // the reported files are checked once more, unchanged
+        assertTrue(scan().isEmpty());
+
+        Set<File> deleted = new HashSet<File>();
+        for (int i = 0; i < COUNT; i += 2) {
+            Path file = dir.resolve("f" + i + ".jar");
+            Files.delete(file);
+            deleted.add(file.toFile());
+        }
+        Path modified = dir.resolve("f1.jar");
+        Files.write(modified, new byte[] { 1, 2 });
+        Files.setLastModifiedTime(modified, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertTrue(scan().isEmpty());
+
+        source.overflow();
+        recorder = scan();
+        assertTrue(recorder.created.isEmpty());
+        assertEquals(Collections.singleton(modified.toFile()), recorder.modified);
+        assertEquals(deleted, recorder.deleted);
+
+        // everything has been reported once
+        source.overflow();
+        assertTrue(scan().isEmpty());
+    }
+
+    private Recorder scan() {
+        Recorder recorder = new Recorder();
+        scanner.scan(false, recorder);
+        return recorder;
+    }
+
+    static class Recorder implements ChangeListener {
+        final Set<File> created = new HashSet<File>();
+        final Set<File> modified = new HashSet<File>();
+        final Set<File> deleted = new HashSet<File>();
+
+        public void changed(File file, Kind kind, long checksum) {
+            switch (kind) {
+            case CREATED:
+                created.add(file);
+                break;
+            case MODIFIED:
+                modified.add(file);
+                break;
+            default:
+                deleted.add(file);
+            }
+        }
+
+        boolean isEmpty() {
+            return created.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    /**
+     * An event source whose keys report nothing until {@link #overflow()}
+     * is called, then a single overflow event each.
+     */
+    static class OverflowSource implements EventSource {
+        final List<OverflowKey> keys = new ArrayList<OverflowKey>();
+
+        public WatchService newWatchService(FileSystem fileSystem) {
+            return new QueueWatchService();
+        }
+
+        public WatchKey register(WatchService service, Path dir) {
+            OverflowKey key = new OverflowKey((QueueWatchService) service, dir);
+            keys.add(key);
+            return key;
+        }
+
+        void overflow() {
+            for (OverflowKey key : keys) {
+                key.signal();
+            }
+        }
+    }
+
+    static class QueueWatchService implements WatchService {
+        final LinkedBlockingQueue<WatchKey> queue = new LinkedBlockingQueue<WatchKey>();
+        volatile boolean closed;
+
+        public void close() {
+            closed = true;
+        }
+
+        public WatchKey poll() {
+            check();
+            return queue.poll();
+        }
+
+        public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+            check();
+            return queue.poll(timeout, unit);
+        }
+
+        public WatchKey take() throws InterruptedException {
+            check();
+            return queue.take();
+        }
+
+        private void check() {
+            if (closed) {
+                throw new ClosedWatchServiceException();
+            }
+        }
+    }
+
+    static class OverflowKey implements WatchKey {
+        final QueueWatchService service;
+        final Path dir;
+        boolean signalled;
+
+        OverflowKey(QueueWatchService service, Path dir) {
+            this.service = service;
+            this.dir = dir;
+        }
+
+        synchronized void signal() {
+            if (!signalled) {
+                signalled = true;
+                service.queue.add(this);
+            }
+        }
+
+        public boolean isValid() {
+            return true;
+        }
+
+        public synchronized List<WatchEvent<?>> pollEvents() {
+            if (!signalled) {
+                return Collections.emptyList();
+            }
+            signalled = false;
+            return Collections.<WatchEvent<?>>singletonList(new WatchEvent<Object>() {
+                public Kind<Object> kind() {
+                    return OVERFLOW;
+                }
+
+                public int count() {
+                    return 1;
+                }
+
+                public Object context() {
+                    return null;
+                }
+            });
+        }
+
+        public boolean reset() {
+            return true;
+        }
+
+        public void cancel() {
+        }
+
+        public Watchable watchable() {
+            return dir;
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the initial walk of a large tree by a recursive
+ * {@link WatcherScanner}, with the sequential walker and with the
+ * fork/join one.  The tree holds a symbolic link loop, which both walkers
+ * must detect.
+ * <p>
+ * Run with the parallelism as argument, 8 by default.
+ */
+public class ParallelRescanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        Path root = Files.createTempDirectory("rescan");
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 20; j++) {
+                Path dir = Files.createDirectories(root.resolve("d" + i).resolve("e" + j));
+                for (int k = 0; k < 50; k++) {
+                    Files.createFile(dir.resolve("f" + k + ".jar"));
+                }
+            }
+        }
+        Files.createSymbolicLink(root.resolve("d0/e0/loop"), root.resolve("d0"));
+        for (int round = 0; round < 3; round++) {
+            for (int p : new int[] { 1, parallelism }) {
+                WatcherScanner scanner = new WatcherScanner(null, root.toFile(), null, "recurse", null);
+                try {
+                    scanner.setParallelism(p);
+                    long start = System.nanoTime();
+                    scanner.start();
+                    System.out.printf("parallelism %2d: %d ms%n", p, (System.nanoTime() - start) / 1000000);
+                } finally {
+                    scanner.close();
+                }
+            }
+        }
+    }
+
+}
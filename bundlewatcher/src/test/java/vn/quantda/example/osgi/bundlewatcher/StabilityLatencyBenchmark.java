@@ -0,0 +1,126 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the time from the last write of a file to its report, for the
+ * polling and the watching scanners: 54 small jars are dropped at once,
+ * while 6 large ones are slowly written in 64 KB chunks every 300 ms.  A
+ * file reported before its last write is counted as early.
+ */
+public class StabilityLatencyBenchmark {
+
+    private static final long POLL = 2000;
+
+    public static void main(String[] args) throws Exception {
+        for (String kind : new String[] { "poll", "watch" }) {
+            run(kind);
+        }
+    }
+
+    private static void run(String kind) throws Exception {
+        final Path dir = Files.createTempDirectory("stability");
+        Scanner scanner;
+        if ("poll".equals(kind)) {
+            scanner = new Scanner(dir.toFile(), null, null);
+        } else {
+            WatcherScanner watcherScanner = new WatcherScanner(null, dir.toFile(), null, null, null);
+            watcherScanner.start();
+            scanner = watcherScanner;
+        }
+        scanner.scan(true);
+        final Map<File, Long> written = new ConcurrentHashMap<File, Long>();
+        final Set<File> large = ConcurrentHashMap.newKeySet();
+        Thread writer = new Thread() {
+            public void run() {
+                Random random = new Random(42);
+                List<Thread> uploads = new ArrayList<Thread>();
+                try {
+                    for (int i = 0; i < 60; i++) {
+                        Thread.sleep(random.nextInt(500));
+                        if (i % 10 == 5) {
+                            final File file = dir.resolve("large" + i + ".jar").toFile();
+                            final int chunks = 15 + random.nextInt(20);
+                            large.add(file);
+                            Thread upload = new Thread() {
+                                public void run() {
+                                    try (FileOutputStream out = new FileOutputStream(file)) {
+                                        for (int c = 0; c < chunks; c++) {
+                                            out.write(new byte[65536]);
+                                            out.flush();
+                                            Thread.sleep(300);
+                                        }
+                                    } catch (Exception e) {
+                                        e.printStackTrace();
+                                    }
+                                    written.put(file, System.currentTimeMillis());
+                                }
+                            };
+                            upload.start();
+                            uploads.add(upload);
+                        } else {
+                            File file = dir.resolve("small" + i + ".jar").toFile();
+                            Files.write(file.toPath(), new byte[50000]);
+                            written.put(file, System.currentTimeMillis());
+                        }
+                    }
+                    for (Thread upload : uploads) {
+                        upload.join();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        List<Long> small = new ArrayList<Long>();
+        List<Long> big = new ArrayList<Long>();
+        int early = 0;
+        long end = Long.MAX_VALUE;
+        try {
+            while (true) {
+                Set<File> reported = scanner.scan(false);
+                long now = System.currentTimeMillis();
+                for (File file : reported) {
+                    Long time = written.get(file);
+                    if (time == null) {
+                        early++;
+                    } else {
+                        (large.contains(file) ? big : small).add(now - time);
+                    }
+                }
+                if (!writer.isAlive() && end == Long.MAX_VALUE) {
+                    end = now + 15000;
+                }
+                if (now >= end || end != Long.MAX_VALUE && scanner.nextScanDelay(POLL) < 0) {
+                    break;
+                }
+                scanner.await(POLL);
+            }
+        } finally {
+            scanner.close();
+        }
+        System.out.println(kind + ": early " + early + ", small " + percentiles(small) + ", large " + percentiles(big));
+    }
+
+    private static String percentiles(List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            return "none";
+        }
+        Collections.sort(latencies);
+        int n = latencies.size();
+        return "n=" + n + " p50=" + latencies.get(n / 2) + " p90=" + latencies.get(n * 9 / 10)
+                + " p99=" + latencies.get(Math.min(n - 1, n * 99 / 100)) + " max=" + latencies.get(n - 1) + " ms";
+    }
+
+}
@@ -0,0 +1,284 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StabilityTrackerTest
+{
+
+    private static final File FILE = new File("/deploy/a.jar");
+    private static final long POLL = 2000;
+
+    private static FileState file(long length, long lastModified)
+    {
+        return new FileState(false, lastModified, length, null);
+    }
+
+    @Test
+    public void testQuietWindowFromModificationTime()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        // written at 0, first seen a while later
+        assertFalse(tracker.observe(FILE, 1, file(10, 0), 400));
+        assertEquals(1000, tracker.getDue(FILE, 400));
+        assertFalse(tracker.isDue(FILE, 999));
+        assertTrue(tracker.observe(FILE, 1, file(10, 0), 1000));
+    }
+
+    @Test
+    public void testOldModificationTimeConfirmedByNextCheck()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        // written long ago, as a file moved in or a copy keeping the time of its source
+        assertFalse(tracker.observe(FILE, 1, file(10, 0), 50000));
+        assertTrue(tracker.isDue(FILE, 50000));
+        assertTrue(tracker.observe(FILE, 1, file(10, 0), 50001));
+    }
+
+    @Test
+    public void testCopyKeepingSourceTime()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        assertFalse(tracker.observe(FILE, 1, file(10, 0), 50000));
+        // grown but dated before the previous check, the time is not trusted anymore
+        assertFalse(tracker.observe(FILE, 2, file(20, 0), 50001));
+        assertEquals(51001, tracker.getDue(FILE, 50001));
+        assertFalse(tracker.observe(FILE, 2, file(20, 0), 50002));
+        assertTrue(tracker.observe(FILE, 2, file(20, 0), 51001));
+    }
+
+    @Test
+    public void testTimeSetBackWithoutGrowth()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        assertFalse(tracker.observe(FILE, 1, file(10, 5000), 5000));
+        // the time of the source is set once the copy is done
+        assertTrue(tracker.observe(FILE, 2, file(10, 0), 5500));
+    }
+
+    @Test
+    public void testWindowDoublesWhileGrowing()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        tracker.observe(FILE, 1, file(10, 0), 0);
+        assertEquals(1000, tracker.getDue(FILE, 0));
+        // first growth keeps the quiet window
+        tracker.observe(FILE, 2, file(20, 500), 500);
+        assertEquals(1500, tracker.getDue(FILE, 500));
+        tracker.observe(FILE, 3, file(30, 1000), 1000);
+        assertEquals(3000, tracker.getDue(FILE, 1000));
+        tracker.observe(FILE, 4, file(40, 2000), 2000);
+        assertEquals(6000, tracker.getDue(FILE, 2000));
+        // up to the maximum
+        tracker.observe(FILE, 5, file(50, 3000), 3000);
+        assertEquals(7000, tracker.getDue(FILE, 3000));
+        assertFalse(tracker.isDue(FILE, 6999));
+        assertTrue(tracker.observe(FILE, 5, file(50, 3000), 7000));
+    }
+
+    @Test
+    public void testRewriteWithoutGrowth()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        tracker.observe(FILE, 1, file(10, 0), 0);
+        tracker.observe(FILE, 2, file(10, 100), 100);
+        assertEquals(1100, tracker.getDue(FILE, 100));
+    }
+
+    @Test
+    public void testRestart()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        tracker.observe(FILE, 1, file(10, 0), 0);
+        tracker.restart(FILE, 500);
+        assertEquals(1500, tracker.getDue(FILE, 500));
+        tracker.restart(FILE, 1500);
+        assertEquals(3500, tracker.getDue(FILE, 1500));
+        // not tracked
+        tracker.restart(new File("/deploy/b.jar"), 0);
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void testDue()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        File other = new File("/deploy/b.jar");
+        assertTrue(tracker.isDue(FILE, 0));
+        assertEquals(Long.MAX_VALUE, tracker.nextDue());
+        tracker.observe(FILE, 1, file(10, 0), 0);
+        tracker.observe(other, 1, file(10, 300), 300);
+        assertFalse(tracker.isDue(FILE, 999));
+        assertTrue(tracker.isDue(FILE, 1000));
+        assertEquals(1000, tracker.nextDue());
+        assertEquals(42, tracker.getDue(new File("/deploy/c.jar"), 42));
+        tracker.remove(FILE);
+        assertEquals(1300, tracker.nextDue());
+        assertTrue(tracker.isDue(FILE, 0));
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void testDirectory()
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        FileState dir = new FileState(true, 0, 0, null);
+        assertFalse(tracker.observe(FILE, 1, dir, 10000));
+        // a directory found changing again backs off too
+        tracker.observe(FILE, 2, dir, 10500);
+        tracker.observe(FILE, 3, dir, 11000);
+        assertEquals(13000, tracker.getDue(FILE, 11000));
+    }
+
+    @Test
+    public void testNoQuietWindow()
+    {
+        StabilityTracker tracker = new StabilityTracker(0, 0);
+        assertTrue(tracker.observe(FILE, 1, file(10, 0), 0));
+    }
+
+    @Test
+    public void testPollingLatency()
+    {
+        List<Long> small = new ArrayList<Long>();
+        List<Long> large = new ArrayList<Long>();
+        simulate(false, small, large);
+        // a small file is reported once its modification time is a quiet window old,
+        // at worst at the first poll after that
+        assertLatency("small p50", 1000, percentile(small, 50));
+        assertLatency("small p90", 1000, percentile(small, 90));
+        assertLatency("small max", 1000 + POLL, percentile(small, 100));
+        // a large file is checked again at most one maximum window after its last write
+        assertLatency("large max", 2 * 4000, percentile(large, 100));
+    }
+
+    @Test
+    public void testWatchingLatency()
+    {
+        List<Long> small = new ArrayList<Long>();
+        List<Long> large = new ArrayList<Long>();
+        simulate(true, small, large);
+        assertLatency("small max", 1000, percentile(small, 100));
+        assertLatency("large max", 2 * 4000, percentile(large, 100));
+    }
+
+    private static void assertLatency(String name, long max, long latency)
+    {
+        assertTrue(name + " latency " + latency + " ms, expected at most " + max + " ms", latency <= max);
+    }
+
+    /**
+     * Run the checks of a scanner against a simulated clock, and collect the
+     * time from the last write of each file to its report.  A polling scanner
+     * checks the files every poll interval, a watching one when a file is
+     * written, and both when a tracked file is due.
+     */
+    private static void simulate(boolean watching, List<Long> small, List<Long> large)
+    {
+        StabilityTracker tracker = new StabilityTracker(1000, 4000);
+        List<Drop> pending = drops();
+        Set<Long> writes = new HashSet<Long>();
+        for (Drop drop : pending)
+        {
+            for (long write : drop.writes)
+            {
+                writes.add(write);
+            }
+        }
+        for (long now = 0; !pending.isEmpty(); now++)
+        {
+            assertTrue("not all files reported", now < 600000);
+            boolean scan = watching ? writes.contains(now) : now % POLL == 0;
+            if (!scan && now < tracker.nextDue())
+            {
+                continue;
+            }
+            for (Iterator<Drop> iterator = pending.iterator(); iterator.hasNext(); )
+            {
+                Drop drop = iterator.next();
+                FileState state = drop.state(now);
+                if (state == null || !tracker.isDue(drop.file, now))
+                {
+                    continue;
+                }
+                long checksum = state.getLength() * 31 + state.getLastModified();
+                if (tracker.observe(drop.file, checksum, state, now))
+                {
+                    long last = drop.writes[drop.writes.length - 1];
+                    assertTrue(drop.file + " reported before its last write", now > last);
+                    (drop.large ? large : small).add(now - last);
+                    tracker.remove(drop.file);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 54 small files created empty and written right after, and 6 large ones
+     * written in 64 KB chunks every 300 ms, one every 250 ms on average.
+     */
+    private static List<Drop> drops()
+    {
+        Random random = new Random(42);
+        List<Drop> drops = new ArrayList<Drop>();
+        long time = 0;
+        for (int i = 0; i < 60; i++)
+        {
+            time += random.nextInt(500);
+            boolean large = i % 10 == 5;
+            long[] writes = new long[large ? 15 + random.nextInt(20) : 2];
+            for (int c = 0; c < writes.length; c++)
+            {
+                writes[c] = time + (large ? 300 : 5) * c;
+            }
+            drops.add(new Drop(new File("/deploy/f" + i + ".jar"), large, writes));
+        }
+        return drops;
+    }
+
+    private static long percentile(List<Long> latencies, int percentile)
+    {
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        return sorted.get(Math.max(0, (sorted.size() * percentile + 99) / 100 - 1));
+    }
+
+    private static final class Drop
+    {
+        final File file;
+        final boolean large;
+        // Times of the writes of the chunks, the first one creating the file
+        final long[] writes;
+
+        Drop(File file, boolean large, long[] writes)
+        {
+            this.file = file;
+            this.large = large;
+            this.writes = writes;
+        }
+
+        FileState state(long now)
+        {
+            int written = 0;
+            while (written < writes.length && writes[written] <= now)
+            {
+                written++;
+            }
+            return written == 0 ? null : file((written - 1) * 65536L, writes[written - 1]);
+        }
+    }
+
+}
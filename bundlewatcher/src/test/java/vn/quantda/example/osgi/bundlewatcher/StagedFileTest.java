@@ -0,0 +1,133 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StagedFileTest
+{
+
+    private static final byte[] CONTENT = "some content".getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File drop;
+    private File staging;
+    private File jar;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        drop = folder.newFolder("drop");
+        staging = new File(folder.getRoot(), "staging");
+        jar = new File(drop, "a.jar");
+        Files.write(jar.toPath(), CONTENT);
+    }
+
+    @Test
+    public void testStage() throws IOException
+    {
+        StagedFile staged = StagedFile.stage(jar, staging);
+        assertEquals(staging, staged.getFile().getParentFile());
+        assertTrue(staged.getFile().getName().endsWith("-a.jar"));
+        assertArrayEquals(CONTENT, Files.readAllBytes(staged.getFile().toPath()));
+        staged.verify();
+        // each snapshot has its own name
+        StagedFile other = StagedFile.stage(jar, staging);
+        assertFalse(staged.getFile().equals(other.getFile()));
+        staged.close();
+        assertFalse(staged.getFile().exists());
+        assertTrue(other.getFile().exists());
+        assertTrue(jar.exists());
+        other.close();
+        staged.close();
+    }
+
+    @Test
+    public void testReplacedSourceKeepsSnapshot() throws IOException
+    {
+        StagedFile staged = StagedFile.stage(jar, staging);
+        File part = new File(drop, "a.jar.part");
+        Files.write(part.toPath(), new byte[3]);
+        Files.move(part.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        assertArrayEquals(CONTENT, Files.readAllBytes(staged.getFile().toPath()));
+        staged.verify();
+        staged.close();
+
+        staged = StagedFile.stage(jar, staging);
+        assertTrue(jar.delete());
+        assertEquals(3, staged.getFile().length());
+        staged.close();
+    }
+
+    @Test
+    public void testWrittenInPlace() throws IOException
+    {
+        StagedFile staged = StagedFile.stage(jar, staging);
+        // only a hard link shares the writes to the file
+        assumeTrue(staged.isLinked());
+        try (RandomAccessFile file = new RandomAccessFile(jar, "rw"))
+        {
+            file.setLength(3);
+        }
+        try
+        {
+            staged.verify();
+            fail("The write has not been detected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        finally
+        {
+            staged.close();
+        }
+    }
+
+    @Test
+    public void testFailedStageLeavesNothing() throws IOException
+    {
+        for (File source : new File[] { new File(drop, "missing.jar"), folder.newFolder("dir.jar") })
+        {
+            try
+            {
+                StagedFile.stage(source, staging).close();
+                fail("Staged " + source);
+            }
+            catch (IOException e)
+            {
+                // expected
+            }
+            assertEquals(0, staging.list().length);
+        }
+    }
+
+    @Test
+    public void testPurge() throws IOException
+    {
+        StagedFile.stage(jar, staging);
+        Files.write(new File(staging, "1-left.jar").toPath(), CONTENT);
+        StagedFile.purge(staging);
+        assertEquals(0, staging.list().length);
+        assertTrue(jar.exists());
+        // nothing to purge
+        StagedFile.purge(new File(folder.getRoot(), "missing"));
+    }
+
+}
@@ -0,0 +1,82 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the {@link StreamScanner} with the {@link Scanner} on a directory
+ * of 100,000 files, half of them jars, and a few sub directories: the
+ * initial scan and the best of five unchanged scans, without and with a
+ * filter.  Both scanners must compute the same checksums.
+ */
+public class StreamScannerBenchmark {
+
+    private static final String JARS = ".*\\.jar";
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Path dir = Files.createTempDirectory("stream");
+        for (int i = 0; i < count; i++) {
+            Files.write(dir.resolve("bundle-" + i + (i % 2 == 0 ? ".jar" : ".txt")), new byte[] { 1 });
+        }
+        for (int d = 0; d < 10; d++) {
+            Path sub = Files.createDirectories(dir.resolve("sub" + d));
+            for (int i = 0; i < 100; i++) {
+                Files.write(sub.resolve("f" + i), new byte[] { 1 });
+            }
+        }
+        for (String filter : new String[] { null, JARS }) {
+            // the first round warms up
+            for (int round = 0; round < 2; round++) {
+                for (boolean stream : new boolean[] { false, true }) {
+                    Scanner scanner = create(stream, dir, filter, null);
+                    try {
+                        long start = System.nanoTime();
+                        int reported = scanner.scan(true).size();
+                        long initial = System.nanoTime() - start;
+                        long best = Long.MAX_VALUE;
+                        for (int i = 0; i < 5; i++) {
+                            start = System.nanoTime();
+                            reported += scanner.scan(false).size();
+                            best = Math.min(best, System.nanoTime() - start);
+                        }
+                        if (round == 1) {
+                            System.out.printf("%-13s filter %-7s initial %4d ms, unchanged %4d ms, %d reported%n",
+                                    scanner.getClass().getSimpleName(), filter, initial / 1000000, best / 1000000, reported);
+                        }
+                    } finally {
+                        scanner.close();
+                    }
+                }
+            }
+        }
+        Scanner scanner = create(false, dir, null, null);
+        Scanner streamScanner = create(true, dir, null, null);
+        try {
+            scanner.scan(true);
+            streamScanner.scan(true);
+            int differences = 0;
+            for (File file : dir.toFile().listFiles()) {
+                differences += scanner.getChecksum(file) != streamScanner.getChecksum(file) ? 1 : 0;
+            }
+            System.out.println("checksum differences: " + differences);
+        } finally {
+            scanner.close();
+            streamScanner.close();
+        }
+        scanner = create(false, dir, JARS, "recurse");
+        streamScanner = create(true, dir, JARS, "recurse");
+        try {
+            System.out.println("same files when recursing: " + scanner.scan(true).equals(streamScanner.scan(true)));
+        } finally {
+            scanner.close();
+            streamScanner.close();
+        }
+    }
+
+    private static Scanner create(boolean stream, Path dir, String filter, String subdirMode) {
+        return stream ? new StreamScanner(dir.toFile(), filter, subdirMode) : new Scanner(dir.toFile(), filter, subdirMode);
+    }
+
+}
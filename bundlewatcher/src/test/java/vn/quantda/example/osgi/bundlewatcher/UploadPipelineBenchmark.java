@@ -0,0 +1,105 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how long the initial scan of 1,000 jars takes to return, and
+ * how long until all of them are uploaded, when each upload takes 10 ms
+ * and one in ten fails and is retried: first with the uploads done by the
+ * scanning thread, then through an {@link UploadPipeline} with a growing
+ * concurrency.
+ */
+public class UploadPipelineBenchmark {
+
+    private static final int FILES = 1000;
+    private static final long LATENCY = 10;
+
+    /**
+     * A slow uploader failing every tenth call.
+     */
+    private static class SlowUploader implements UploadPipeline.Uploader {
+
+        final Set<File> uploaded = ConcurrentHashMap.newKeySet();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(FILES);
+
+        public void upload(File file) throws Exception {
+            int call = calls.incrementAndGet();
+            Thread.sleep(LATENCY);
+            if (call % 10 == 0) {
+                throw new IOException("transient failure");
+            }
+            if (uploaded.add(file)) {
+                done.countDown();
+            }
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        for (int i = 0; i < FILES; i++) {
+            Files.write(dir.resolve("b" + i + ".jar"), new byte[] { 1 });
+        }
+        final SlowUploader inline = new SlowUploader();
+        Scanner scanner = new Scanner(dir.toFile(), null, null);
+        try {
+            scanner.setStability(0, 0);
+            long start = System.nanoTime();
+            scanner.scan(true, new ChangeListener() {
+                public void changed(File file, Kind kind, long checksum) {
+                    for (int attempt = 0; attempt < 4; attempt++) {
+                        try {
+                            inline.upload(file);
+                            break;
+                        } catch (Exception e) {
+                            // try again
+                        }
+                    }
+                }
+            });
+            long time = System.nanoTime() - start;
+            System.out.printf("inline:         scan returns after %5d ms, %4d uploaded, %.0f jars/s%n",
+                    time / 1000000, inline.uploaded.size(), FILES / (time / 1e9));
+        } finally {
+            scanner.close();
+        }
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(16);
+        try {
+            for (int concurrency : new int[] { 1, 4, 8, 16 }) {
+                final SlowUploader uploader = new SlowUploader();
+                final UploadPipeline pipeline = new UploadPipeline("benchmark", uploader, executor, concurrency, FILES, 3, 5);
+                scanner = new Scanner(dir.toFile(), null, null);
+                try {
+                    scanner.setStability(0, 0);
+                    long start = System.nanoTime();
+                    scanner.scan(true, new ChangeListener() {
+                        public void changed(File file, Kind kind, long checksum) {
+                            pipeline.submit(file);
+                        }
+                    });
+                    long scanned = System.nanoTime() - start;
+                    uploader.done.await();
+                    long time = System.nanoTime() - start;
+                    System.out.printf("concurrency %2d: scan returns after %5d ms, all uploaded after %5d ms, %4d uploaded in %d attempts, %.0f jars/s%n",
+                            concurrency, scanned / 1000000, time / 1000000, uploader.uploaded.size(), uploader.calls.get(), FILES / (time / 1e9));
+                } finally {
+                    pipeline.close();
+                    scanner.close();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
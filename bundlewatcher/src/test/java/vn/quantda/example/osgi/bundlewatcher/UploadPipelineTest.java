@@ -0,0 +1,346 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadPipelineTest {
+
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newScheduledThreadPool(8);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records the uploaded files, each upload waiting for the gate to open.
+     */
+    private static class Recorder implements UploadPipeline.Uploader {
+
+        final List<File> uploaded = new CopyOnWriteArrayList<File>();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger current = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+
+        public void upload(File file) throws Exception {
+            int count = current.incrementAndGet();
+            synchronized (max) {
+                max.set(Math.max(max.get(), count));
+            }
+            try {
+                gate.await();
+                Thread.sleep(10);
+                uploaded.add(file);
+            } finally {
+                current.decrementAndGet();
+            }
+        }
+
+    }
+
+    private static void waitFor(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, list.size());
+    }
+
+    @Test
+    public void testRetry() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        UploadPipeline pipeline = new UploadPipeline("test", new UploadPipeline.Uploader() {
+            public void upload(File file) throws Exception {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new IOException("unavailable");
+                }
+                done.countDown();
+            }
+        }, executor, 1, 256, 3, 10);
+        long start = System.currentTimeMillis();
+        pipeline.submit(new File("a.jar"));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // waited 10 then 20 ms
+        assertTrue(System.currentTimeMillis() - start >= 30);
+        assertEquals(3, attempts.get());
+        pipeline.close();
+    }
+
+    @Test
+    public void testRetriesExhausted() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        UploadPipeline pipeline = new UploadPipeline("test", new UploadPipeline.Uploader() {
+            public void upload(File file) throws Exception {
+                attempts.incrementAndGet();
+                throw new IOException("unavailable");
+            }
+        }, executor, 1, 256, 2, 1);
+        pipeline.submit(new File("a.jar"));
+        Thread.sleep(300);
+        assertEquals(3, attempts.get());
+        pipeline.close();
+    }
+
+    @Test
+    public void testConcurrencyAndCoalescing() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 2, 256, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            for (int r = 0; r < 5; r++) {
+                pipeline.submit(new File("f" + i + ".jar"));
+            }
+        }
+        recorder.gate.countDown();
+        // the two files uploading when submitted again are uploaded once more
+        waitFor(recorder.uploaded, 12);
+        Thread.sleep(100);
+        assertEquals(12, recorder.uploaded.size());
+        assertEquals(2, recorder.max.get());
+        assertEquals(2, Collections.frequency(recorder.uploaded, new File("f0.jar")));
+        assertEquals(1, Collections.frequency(recorder.uploaded, new File("f5.jar")));
+        pipeline.close();
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 256, 0, 0);
+        pipeline.submit(new File("a.jar"));
+        pipeline.submit(new File("b.jar"));
+        pipeline.submit(new File("c.jar"));
+        pipeline.cancel(new File("b.jar"));
+        recorder.gate.countDown();
+        waitFor(recorder.uploaded, 2);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(new File("a.jar"), new File("c.jar")), recorder.uploaded);
+        pipeline.close();
+    }
+
+    @Test
+    public void testCloseWaitsForUploads() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        final UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 256, 0, 0);
+        pipeline.submit(new File("a.jar"));
+        pipeline.submit(new File("b.jar"));
+        while (recorder.current.get() == 0) {
+            Thread.sleep(10);
+        }
+        Thread closer = new Thread() {
+            public void run() {
+                pipeline.close();
+            }
+        };
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive());
+        recorder.gate.countDown();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+        // the waiting file has been dropped, and nothing is accepted any more
+        assertEquals(Collections.singletonList(new File("a.jar")), recorder.uploaded);
+        pipeline.submit(new File("c.jar"));
+        Thread.sleep(100);
+        assertEquals(1, recorder.uploaded.size());
+    }
+
+    @Test
+    public void testCloseDropsRetries() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        UploadPipeline pipeline = new UploadPipeline("test", new UploadPipeline.Uploader() {
+            public void upload(File file) throws Exception {
+                attempts.incrementAndGet();
+                throw new IOException("unavailable");
+            }
+        }, executor, 1, 256, 3, 200);
+        pipeline.submit(new File("a.jar"));
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        pipeline.close();
+        assertTrue(System.currentTimeMillis() - start < 100);
+        Thread.sleep(300);
+        assertEquals(1, attempts.get());
+    }
+
+    /**
+     * Records the batches handed over.
+     */
+    private static class BatchRecorder implements UploadPipeline.BatchUploader {
+
+        final List<List<File>> batches = new CopyOnWriteArrayList<List<File>>();
+
+        public void upload(File file) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void upload(List<File> files) {
+            batches.add(new ArrayList<File>(files));
+        }
+
+    }
+
+    private static List<File> files(int from, int to) {
+        List<File> files = new ArrayList<File>();
+        for (int i = from; i < to; i++) {
+            files.add(new File("b" + i + ".jar"));
+        }
+        return files;
+    }
+
+    @Test
+    public void testBatchingUntilFlush() throws InterruptedException {
+        BatchRecorder recorder = new BatchRecorder();
+        UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 256, 0, 0);
+        pipeline.setBatching(0, 3);
+        for (File file : files(0, 7)) {
+            pipeline.submit(file);
+        }
+        waitFor(recorder.batches, 2);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(files(0, 3), files(3, 6)), recorder.batches);
+        pipeline.flush();
+        waitFor(recorder.batches, 3);
+        assertEquals(files(6, 7), recorder.batches.get(2));
+        pipeline.close();
+    }
+
+    @Test
+    public void testBatchingWindow() throws InterruptedException {
+        BatchRecorder recorder = new BatchRecorder();
+        UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 256, 0, 0);
+        pipeline.setBatching(100, 0);
+        for (File file : files(0, 5)) {
+            pipeline.submit(file);
+        }
+        Thread.sleep(20);
+        assertTrue(recorder.batches.isEmpty());
+        waitFor(recorder.batches, 1);
+        assertEquals(files(0, 5), recorder.batches.get(0));
+        pipeline.close();
+    }
+
+    @Test
+    public void testOfferWhenFull() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 2, 0, 0);
+        assertTrue(pipeline.offer(new File("a.jar")));
+        while (recorder.current.get() == 0) {
+            Thread.sleep(10);
+        }
+        // a.jar is uploading, two more files may wait
+        assertTrue(pipeline.offer(new File("b.jar")));
+        assertFalse(pipeline.isFull());
+        assertTrue(pipeline.offer(new File("c.jar")));
+        assertTrue(pipeline.isFull());
+        assertFalse(pipeline.offer(new File("d.jar")));
+        // a file already waiting takes no more room
+        assertTrue(pipeline.offer(new File("b.jar")));
+        pipeline.cancel(new File("c.jar"));
+        assertTrue(pipeline.offer(new File("d.jar")));
+        recorder.gate.countDown();
+        waitFor(recorder.uploaded, 3);
+        assertEquals(Arrays.asList(new File("a.jar"), new File("b.jar"), new File("d.jar")), recorder.uploaded);
+        pipeline.close();
+    }
+
+    @Test
+    public void testSubmitWaitsForRoom() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        final UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 1, 0, 0);
+        pipeline.submit(new File("a.jar"));
+        pipeline.submit(new File("b.jar"));
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread scanner = new Thread() {
+            public void run() {
+                if (pipeline.submit(new File("c.jar"))) {
+                    submitted.countDown();
+                }
+            }
+        };
+        scanner.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        recorder.gate.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        waitFor(recorder.uploaded, 3);
+        pipeline.close();
+    }
+
+    @Test
+    public void testCloseWakesSubmit() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        final UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 1, 0, 0);
+        pipeline.submit(new File("a.jar"));
+        pipeline.submit(new File("b.jar"));
+        final AtomicInteger refused = new AtomicInteger();
+        Thread scanner = new Thread() {
+            public void run() {
+                if (!pipeline.submit(new File("c.jar"))) {
+                    refused.incrementAndGet();
+                }
+            }
+        };
+        scanner.start();
+        scanner.join(200);
+        assertTrue(scanner.isAlive());
+        Thread closer = new Thread() {
+            public void run() {
+                pipeline.close();
+            }
+        };
+        closer.start();
+        // the submit gives up at once, while the close waits for a.jar
+        scanner.join(10000);
+        assertFalse(scanner.isAlive());
+        assertEquals(1, refused.get());
+        recorder.gate.countDown();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+        assertEquals(Collections.singletonList(new File("a.jar")), recorder.uploaded);
+    }
+
+    @Test
+    public void testBatchingWhenFull() throws InterruptedException {
+        BatchRecorder recorder = new BatchRecorder();
+        UploadPipeline pipeline = new UploadPipeline("test", recorder, executor, 1, 2, 0, 0);
+        pipeline.setBatching(0, 0);
+        // the batches are handed over without waiting for the end of the scan
+        for (File file : files(0, 5)) {
+            pipeline.submit(file);
+        }
+        waitFor(recorder.batches, 2);
+        pipeline.flush();
+        waitFor(recorder.batches, 3);
+        assertEquals(Arrays.asList(files(0, 2), files(2, 4), files(4, 5)), recorder.batches);
+        pipeline.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBatchingNeedsBatchUploader() {
+        new UploadPipeline("test", new Recorder(), executor, 1, 256, 0, 0).setBatching(0, 0);
+    }
+
+}
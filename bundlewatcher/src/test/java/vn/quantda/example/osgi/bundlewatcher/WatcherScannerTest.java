@@ -0,0 +1,104 @@
+package vn.quantda.example.osgi.bundlewatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WatcherScannerTest {
+
+    private Path dir;
+    private Path jar;
+    private WatcherScanner scanner;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("scanner");
+        jar = dir.resolve("a.jar");
+        Files.write(jar, new byte[] { 1 });
+        scanner = new WatcherScanner(null, dir.toFile(), null, null, null);
+        // events are only those reported by the tests
+        scanner.setEventSource(new OverflowTest.OverflowSource());
+        // a file that is not reported complete is never stable during a test
+        scanner.setStability(60000, 60000);
+        scanner.start();
+        assertEquals(Collections.singleton(jar.toFile()), scanner.scan(true));
+        assertTrue(scanner.scan(false).isEmpty());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scanner.close();
+        Files.deleteIfExists(jar);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testComplete() throws IOException {
+        write(2);
+        scanner.watcher.processComplete(jar, attributes());
+        assertEquals(Collections.singleton(jar.toFile()), scanner.scan(false));
+    }
+
+    @Test
+    public void testModifyThenComplete() throws IOException {
+        write(2);
+        scanner.watcher.process(jar, attributes());
+        write(3);
+        scanner.watcher.processComplete(jar, attributes());
+        assertEquals(Collections.singleton(jar.toFile()), scanner.scan(false));
+    }
+
+    @Test
+    public void testCompleteThenModify() throws IOException {
+        write(2);
+        scanner.watcher.processComplete(jar, attributes());
+        // written again before the scan, the file is not known to be complete anymore
+        write(3);
+        scanner.watcher.process(jar, attributes());
+        assertTrue(scanner.scan(false).isEmpty());
+
+        // until it is reported complete again
+        scanner.watcher.processComplete(jar, attributes());
+        assertEquals(Collections.singleton(jar.toFile()), scanner.scan(false));
+    }
+
+    @Test
+    public void testDefer() throws IOException {
+        write(2);
+        scanner.watcher.processComplete(jar, attributes());
+        OverflowTest.Recorder recorder = new OverflowTest.Recorder();
+        scanner.scan(false, new ChangeListener() {
+            public void changed(File file, Kind kind, long checksum) {
+                scanner.defer(file);
+            }
+        });
+        // left for the next scan, as if it had not been seen
+        scanner.scan(false, recorder);
+        assertEquals(Collections.singleton(jar.toFile()), recorder.modified);
+        assertTrue(scanner.scan(false).isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDeferOutsideScan() {
+        scanner.defer(jar.toFile());
+    }
+
+    private void write(int length) throws IOException {
+        Files.write(jar, new byte[length]);
+    }
+
+    private BasicFileAttributes attributes() throws IOException {
+        return Files.readAttributes(jar, BasicFileAttributes.class);
+    }
+
+}